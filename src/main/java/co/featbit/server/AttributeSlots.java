@@ -0,0 +1,150 @@
+package co.featbit.server;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * interns the names of the user attributes referenced by the flags and segments of a client into integer slots.
+ * <p>
+ * The builtin attributes of {@link co.featbit.commons.model.FBUser} get a fixed slot, whatever their case,
+ * the custom attributes get the next free slot of the client. A compiled flag refers to the attributes by {@link Attribute},
+ * whose slot is resolved once by client. An {@link EvaluationContext} then holds the values of a user by slot.
+ */
+final class AttributeSlots {
+
+    // a null attribute name, the value is always null
+    static final int NONE = -1;
+    static final int KEY = 0;
+    static final int NAME = 1;
+    // a custom attribute, its slot depends on the client
+    private static final int CUSTOM = -2;
+
+    private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+
+    private volatile String[] names = {"keyid", "name"};
+
+    AttributeSlots() {
+        super();
+    }
+
+    /**
+     * returns the slot of a user attribute, the name is interned if not yet
+     *
+     * @param attribute user attribute name
+     * @return a slot
+     */
+    int slotOf(String attribute) {
+        int builtin = builtinSlotOf(attribute);
+        if (builtin != CUSTOM) {
+            return builtin;
+        }
+        Integer slot = slots.get(attribute);
+        return slot == null ? register(attribute) : slot;
+    }
+
+    private synchronized int register(String attribute) {
+        Integer slot = slots.get(attribute);
+        if (slot != null) {
+            return slot;
+        }
+        String[] current = names;
+        String[] copy = Arrays.copyOf(current, current.length + 1);
+        copy[current.length] = attribute;
+        names = copy;
+        slots.put(attribute, current.length);
+        return current.length;
+    }
+
+    // the same resolution as FBUser#getProperty
+    private static int builtinSlotOf(String attribute) {
+        if (attribute == null) {
+            return NONE;
+        }
+        switch (attribute.toLowerCase()) {
+            case "key":
+            case "keyid":
+                return KEY;
+            case "name":
+                return NAME;
+            default:
+                return CUSTOM;
+        }
+    }
+
+    /**
+     * @return the number of slots interned so far
+     */
+    int size() {
+        return names.length;
+    }
+
+    String nameOf(int slot) {
+        return names[slot];
+    }
+
+    /**
+     * a user attribute referenced by a compiled flag or segment. The slot of a custom attribute is resolved
+     * the first time the attribute is read with the slots of a client, and then kept while the client is the same.
+     * Two attributes are equal if they read the same user property.
+     */
+    static final class Attribute {
+        private final String name;
+        private final int builtinSlot;
+        // the slot in the last slots used, replaced as a whole: safely published by its final fields
+        private Resolved resolved;
+
+        private Attribute(String name) {
+            this.name = name;
+            this.builtinSlot = builtinSlotOf(name);
+        }
+
+        static Attribute of(String name) {
+            return new Attribute(name);
+        }
+
+        int slotIn(AttributeSlots slots) {
+            if (builtinSlot != CUSTOM) {
+                return builtinSlot;
+            }
+            Resolved r = resolved;
+            if (r == null || r.slots != slots) {
+                r = new Resolved(slots, slots.slotOf(name));
+                resolved = r;
+            }
+            return r.slot;
+        }
+
+        boolean isNone() {
+            return builtinSlot == NONE;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Attribute)) return false;
+            Attribute that = (Attribute) o;
+            return builtinSlot == that.builtinSlot && (builtinSlot != CUSTOM || name.equals(that.name));
+        }
+
+        @Override
+        public int hashCode() {
+            return builtinSlot == CUSTOM ? name.hashCode() : Integer.hashCode(builtinSlot);
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(name);
+        }
+    }
+
+    private static final class Resolved {
+        private final AttributeSlots slots;
+        private final int slot;
+
+        private Resolved(AttributeSlots slots, int slot) {
+            this.slots = slots;
+            this.slot = slot;
+        }
+    }
+}
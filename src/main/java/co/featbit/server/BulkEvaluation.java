@@ -0,0 +1,211 @@
+package co.featbit.server;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The results of a feature flag evaluated for a population of users,
+ * see {@link co.featbit.server.exterior.FBClient#bulkEvaluate(String, java.util.List, boolean)}.
+ * <p>
+ * The results are kept by variation value: the number of users given a variation and, if the users were given
+ * in a list, the indices of those users in the list. The users are evaluated against the same version of the data.
+ */
+public final class BulkEvaluation {
+
+    private final String featureFlagKey;
+
+    private final boolean success;
+
+    private final String reason;
+
+    private final long version;
+
+    private final Map<String, Long> counts;
+
+    // null if the users were not indexed
+    private final Map<String, BitSet> userIndices;
+
+    private final long errorCount;
+
+    private BulkEvaluation(String featureFlagKey,
+                           boolean success,
+                           String reason,
+                           long version,
+                           Map<String, Long> counts,
+                           Map<String, BitSet> userIndices,
+                           long errorCount) {
+        this.featureFlagKey = featureFlagKey;
+        this.success = success;
+        this.reason = reason;
+        this.version = version;
+        this.counts = counts;
+        this.userIndices = userIndices;
+        this.errorCount = errorCount;
+    }
+
+    /**
+     * returns the results of a flag that was not evaluated
+     *
+     * @param featureFlagKey the key of the flag
+     * @param reason         the reason why the flag was not evaluated
+     * @return a {@link BulkEvaluation}
+     */
+    public static BulkEvaluation error(String featureFlagKey, String reason) {
+        return new BulkEvaluation(featureFlagKey, false, reason, 0, ImmutableMap.of(), null, 0);
+    }
+
+    /**
+     * counts the variation values given to the users, for the implementations of {@link co.featbit.server.exterior.FBClient}
+     *
+     * @param featureFlagKey the key of the flag
+     * @param version        the version of the data the users were evaluated against, 0 if unknown
+     * @param variations     the variation value of each user in order, null if the user was not evaluated
+     * @param indexed        true if the users were given in a list, the indices of the users are kept
+     * @return a {@link BulkEvaluation}
+     */
+    public static BulkEvaluation of(String featureFlagKey, long version, Iterator<String> variations, boolean indexed) {
+        Accumulator acc = new Accumulator(indexed);
+        for (int index = 0; variations.hasNext(); index++) {
+            acc.add(index, variations.next());
+        }
+        return acc.toEvaluation(featureFlagKey, version);
+    }
+
+    /**
+     * @return the key of the flag
+     */
+    public String getFeatureFlagKey() {
+        return featureFlagKey;
+    }
+
+    /**
+     * @return false if the flag was not evaluated, for example if it's not found
+     */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * @return the reason why the flag was not evaluated, empty if success
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * @return the version of the data the users were evaluated against
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the number of users by variation value
+     */
+    public Map<String, Long> getCounts() {
+        return counts;
+    }
+
+    /**
+     * @param variation a variation value
+     * @return the number of users given the variation
+     */
+    public long getCount(String variation) {
+        Long count = counts.get(variation);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * returns the indices of the users given a variation, in the list of the evaluated users
+     *
+     * @param variation a variation value
+     * @return a copy of the bitmap of the user indices, null if the users were given by a stream
+     */
+    public BitSet getUserIndices(String variation) {
+        if (userIndices == null) {
+            return null;
+        }
+        BitSet indices = userIndices.get(variation);
+        return indices == null ? new BitSet() : (BitSet) indices.clone();
+    }
+
+    /**
+     * @return the number of users not evaluated, null or without key
+     */
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * @return the number of users, including the users not evaluated
+     */
+    public long getTotal() {
+        long total = errorCount;
+        for (long count : counts.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("featureFlagKey", featureFlagKey)
+                .add("success", success)
+                .add("reason", reason)
+                .add("version", version)
+                .add("counts", counts)
+                .add("errorCount", errorCount)
+                .toString();
+    }
+
+    /**
+     * the mutable results of a part of the users, the parts evaluated in parallel are merged at the end.
+     * not thread safe.
+     */
+    static final class Accumulator {
+        private final Map<String, long[]> counts = new HashMap<>();
+        // null if the users are not indexed
+        private final Map<String, BitSet> userIndices;
+        private long errorCount;
+
+        Accumulator(boolean indexed) {
+            this.userIndices = indexed ? new HashMap<>() : null;
+        }
+
+        /**
+         * @param index     the index of the user, ignored if the users are not indexed
+         * @param variation the variation value of the user, null if not evaluated
+         */
+        void add(int index, String variation) {
+            if (variation == null) {
+                errorCount++;
+                return;
+            }
+            counts.computeIfAbsent(variation, k -> new long[1])[0]++;
+            if (userIndices != null) {
+                userIndices.computeIfAbsent(variation, k -> new BitSet()).set(index);
+            }
+        }
+
+        void merge(Accumulator other) {
+            other.counts.forEach((variation, count) -> counts.computeIfAbsent(variation, k -> new long[1])[0] += count[0]);
+            if (userIndices != null && other.userIndices != null) {
+                other.userIndices.forEach((variation, indices) -> userIndices.computeIfAbsent(variation, k -> new BitSet()).or(indices));
+            }
+            errorCount += other.errorCount;
+        }
+
+        BulkEvaluation toEvaluation(String featureFlagKey, long version) {
+            ImmutableMap.Builder<String, Long> countsBuilder = ImmutableMap.builder();
+            counts.forEach((variation, count) -> countsBuilder.put(variation, count[0]));
+            return new BulkEvaluation(featureFlagKey, true, "", version, countsBuilder.build(),
+                    userIndices == null ? null : ImmutableMap.copyOf(userIndices), errorCount);
+        }
+    }
+}
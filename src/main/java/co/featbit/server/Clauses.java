@@ -0,0 +1,565 @@
+package co.featbit.server;
+
+import co.featbit.commons.json.JsonHelper;
+import co.featbit.commons.json.JsonParseException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.reflect.TypeToken;
+import org.apache.commons.lang3.StringUtils;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static co.featbit.server.Evaluator.*;
+
+/**
+ * the compiled form of the conditions of a flag or a segment.
+ * <p>
+ * Each {@link DataModel.Condition} is compiled once, when the flag or segment is deserialized, into an immutable
+ * {@link Clause} whose operator and operand are already resolved, so that the evaluation just walks the compiled rules.
+ * The user attributes are referenced by {@link AttributeSlots.Attribute}, read by slot in the {@link EvaluationContext}.
+ */
+abstract class Clauses {
+
+    private Clauses() {
+    }
+
+    enum Operator {
+        BIGGER_EQUAL_THAN(GE_CLAUSE, 4),
+        BIGGER_THAN(GT_CLAUSE, 4),
+        LESS_EQUAL_THAN(LE_CLAUSE, 4),
+        LESS_THAN(LT_CLAUSE, 4),
+        EQUAL(EQ_CLAUSE, 1),
+        NOT_EQUAL(NEQ_CLAUSE, 1),
+        CONTAINS(CONTAINS_CLAUSE, 3),
+        NOT_CONTAIN(NOT_CONTAIN_CLAUSE, 3),
+        IS_ONE_OF(IS_ONE_OF_CLAUSE, 2),
+        NOT_ONE_OF(NOT_ONE_OF_CLAUSE, 2),
+        STARTS_WITH(STARTS_WITH_CLAUSE, 3),
+        ENDS_WITH(ENDS_WITH_CLAUSE, 3),
+        IS_TRUE(IS_TRUE_CLAUSE, 1),
+        IS_FALSE(IS_FALSE_CLAUSE, 1),
+        MATCH_REGEX(MATCH_REGEX_CLAUSE, 5),
+        NOT_MATCH_REGEX(NOT_MATCH_REGEX_CLAUSE, 5),
+        IS_IN_SEGMENT(IS_IN_SEGMENT_CLAUSE, 6),
+        NOT_IN_SEGMENT(NOT_IN_SEGMENT_CLAUSE, 6),
+        UNKNOWN(null, 0);
+
+        private final String op;
+
+        // the estimated cost of a match: 0 never reads the user, 1 an equality, 2 a set membership,
+        // 3 a substring search, 4 a number parsing, 5 a regex, 6 the segments and their rules
+        private final int cost;
+
+        Operator(String op, int cost) {
+            this.op = op;
+            this.cost = cost;
+        }
+
+        static Operator of(DataModel.Condition condition) {
+            String op = condition.getOp();
+            // segment hasn't any operation
+            op = StringUtils.isBlank(op) ? condition.getProperty() : op;
+            for (Operator operator : values()) {
+                if (operator.op != null && operator.op.equals(op)) {
+                    return operator;
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+
+    @FunctionalInterface
+    interface Clause {
+        boolean match(EvaluationContext context);
+    }
+
+    static final Clause NEVER = context -> false;
+
+    static Clause compile(DataModel.Condition condition) {
+        String property = condition.getProperty();
+        String value = condition.getValue();
+        Operator operator = Operator.of(condition);
+        switch (operator) {
+            case BIGGER_EQUAL_THAN:
+            case BIGGER_THAN:
+            case LESS_EQUAL_THAN:
+            case LESS_THAN:
+                return StringUtils.isNumeric(value) ? new ThanClause(property, operator, value) : NEVER;
+            case EQUAL:
+                return value == null ? NEVER : new EqualClause(property, value);
+            case NOT_EQUAL:
+                return not(value == null ? NEVER : new EqualClause(property, value));
+            case CONTAINS:
+                return value == null ? NEVER : new ContainsClause(property, value);
+            case NOT_CONTAIN:
+                return not(value == null ? NEVER : new ContainsClause(property, value));
+            case IS_ONE_OF:
+                return new OneOfClause(property, parseSet(value));
+            case NOT_ONE_OF:
+                return not(new OneOfClause(property, parseSet(value)));
+            case STARTS_WITH:
+                return value == null ? NEVER : new StartsWithClause(property, value);
+            case ENDS_WITH:
+                return value == null ? NEVER : new EndsWithClause(property, value);
+            case IS_TRUE:
+                return new BooleanClause(property, "true");
+            case IS_FALSE:
+                return new BooleanClause(property, "false");
+            case MATCH_REGEX:
+                return RegexClause.of(property, value, false);
+            case NOT_MATCH_REGEX:
+                return RegexClause.of(property, value, true);
+            case IS_IN_SEGMENT:
+                return new InSegmentClause(parseSet(value));
+            case NOT_IN_SEGMENT:
+                return not(new InSegmentClause(parseSet(value)));
+            default:
+                return NEVER;
+        }
+    }
+
+    /**
+     * compiles the conditions of a rule, ordered by their estimated cost.
+     * <p>
+     * A rule matches if all its conditions match, whatever their order: the cheapest clauses are evaluated first
+     * so that an expensive regex or segment clause is skipped as soon as a cheap one fails.
+     * The clauses of the same cost keep the declaration order.
+     *
+     * @param conditions the conditions of a rule
+     * @return an immutable list of clauses
+     */
+    static List<Clause> compile(List<DataModel.Condition> conditions) {
+        int size = conditions.size();
+        Clause[] clauses = new Clause[size];
+        int[] costs = new int[size];
+        int maxCost = 0;
+        for (int i = 0; i < size; i++) {
+            DataModel.Condition condition = conditions.get(i);
+            clauses[i] = compile(condition);
+            // an invalid condition never matches, it doesn't read the user
+            costs[i] = clauses[i] == NEVER ? 0 : Operator.of(condition).cost;
+            maxCost = Math.max(maxCost, costs[i]);
+        }
+        ImmutableList.Builder<Clause> builder = ImmutableList.builder();
+        for (int cost = 0; cost <= maxCost; cost++) {
+            for (int i = 0; i < size; i++) {
+                if (costs[i] == cost) {
+                    builder.add(clauses[i]);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    static boolean matchAll(List<Clause> clauses, EvaluationContext context) {
+        // indexed loop, no iterator is allocated
+        for (int i = 0; i < clauses.size(); i++) {
+            if (!clauses.get(i).match(context)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * parses a json array of strings, the value of IsOneOf/NotOneOf and segment conditions, into a hashed set
+     *
+     * @param value json array
+     * @return an immutable set, empty if the value is not a valid json array, the null elements are ignored
+     */
+    static Set<String> parseSet(String value) {
+        if (value == null) {
+            return ImmutableSet.of();
+        }
+        try {
+            List<String> list = JsonHelper.deserialize(value, new TypeToken<List<String>>() {
+            }.getType());
+            if (list == null) {
+                return ImmutableSet.of();
+            }
+            ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+            for (String element : list) {
+                if (element != null) {
+                    builder.add(element);
+                }
+            }
+            return builder.build();
+        } catch (JsonParseException e) {
+            Loggers.EVALUATION.warn("FB JAVA SDK: invalid condition value {}", value);
+            return ImmutableSet.of();
+        }
+    }
+
+    static Clause not(Clause clause) {
+        return new NotClause(clause);
+    }
+
+    static final class NotClause implements Clause {
+        private final Clause clause;
+
+        NotClause(Clause clause) {
+            this.clause = clause;
+        }
+
+        @Override
+        public boolean match(EvaluationContext context) {
+            return !clause.match(context);
+        }
+
+        Clause getClause() {
+            return clause;
+        }
+    }
+
+    static final class ThanClause implements Clause {
+        private final AttributeSlots.Attribute attribute;
+        private final Operator operator;
+        private final double value;
+
+        ThanClause(String property, Operator operator, String value) {
+            this.attribute = AttributeSlots.Attribute.of(property);
+            this.operator = operator;
+            this.value = new BigDecimal(value).setScale(5, RoundingMode.HALF_UP).doubleValue();
+        }
+
+        @Override
+        public boolean match(EvaluationContext context) {
+            String pv = context.getProperty(attribute);
+            if (!StringUtils.isNumeric(pv)) {
+                return false;
+            }
+            return matchNumber(toDouble(pv));
+        }
+
+        AttributeSlots.Attribute getAttribute() {
+            return attribute;
+        }
+
+        /**
+         * @param pvNumber the user property as number
+         */
+        boolean matchNumber(double pvNumber) {
+            switch (operator) {
+                case BIGGER_EQUAL_THAN:
+                    return pvNumber >= value;
+                case BIGGER_THAN:
+                    return pvNumber > value;
+                case LESS_EQUAL_THAN:
+                    return pvNumber <= value;
+                case LESS_THAN:
+                    return pvNumber < value;
+                default:
+                    return false;
+            }
+        }
+
+        double getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * the same value as {@code new BigDecimal(pv).setScale(5, RoundingMode.HALF_UP).doubleValue()} for a numeric string,
+     * an integer, without any allocation if it has less than 19 digits
+     */
+    static double toDouble(String pv) {
+        if (pv.length() > 18) {
+            return new BigDecimal(pv).setScale(5, RoundingMode.HALF_UP).doubleValue();
+        }
+        long number = 0;
+        for (int i = 0; i < pv.length(); i++) {
+            number = number * 10 + Character.digit(pv.charAt(i), 10);
+        }
+        // exact up to 18 digits, then rounded to the nearest double as BigDecimal#doubleValue does
+        return (double) number;
+    }
+
+    static final class EqualClause implements Clause {
+        private final AttributeSlots.Attribute attribute;
+        private final String value;
+
+        EqualClause(String property, String value) {
+            this.attribute = AttributeSlots.Attribute.of(property);
+            this.value = value;
+        }
+
+        @Override
+        public boolean match(EvaluationContext context) {
+            return value.equals(context.getProperty(attribute));
+        }
+
+        AttributeSlots.Attribute getAttribute() {
+            return attribute;
+        }
+
+        String getValue() {
+            return value;
+        }
+    }
+
+    static final class ContainsClause implements Clause {
+        private final AttributeSlots.Attribute attribute;
+        private final String value;
+
+        ContainsClause(String property, String value) {
+            this.attribute = AttributeSlots.Attribute.of(property);
+            this.value = value;
+        }
+
+        @Override
+        public boolean match(EvaluationContext context) {
+            String pv = context.getProperty(attribute);
+            return pv != null && pv.contains(value);
+        }
+
+        AttributeSlots.Attribute getAttribute() {
+            return attribute;
+        }
+
+        String getValue() {
+            return value;
+        }
+    }
+
+    static final class StartsWithClause implements Clause {
+        private final AttributeSlots.Attribute attribute;
+        private final String value;
+
+        StartsWithClause(String property, String value) {
+            this.attribute = AttributeSlots.Attribute.of(property);
+            this.value = value;
+        }
+
+        @Override
+        public boolean match(EvaluationContext context) {
+            String pv = context.getProperty(attribute);
+            return pv != null && pv.startsWith(value);
+        }
+
+        AttributeSlots.Attribute getAttribute() {
+            return attribute;
+        }
+
+        String getValue() {
+            return value;
+        }
+    }
+
+    static final class EndsWithClause implements Clause {
+        private final AttributeSlots.Attribute attribute;
+        private final String value;
+
+        EndsWithClause(String property, String value) {
+            this.attribute = AttributeSlots.Attribute.of(property);
+            this.value = value;
+        }
+
+        @Override
+        public boolean match(EvaluationContext context) {
+            String pv = context.getProperty(attribute);
+            return pv != null && pv.endsWith(value);
+        }
+
+        AttributeSlots.Attribute getAttribute() {
+            return attribute;
+        }
+
+        String getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * a StartsWith, EndsWith or Contains clause whose pattern is searched with the other patterns on the same attribute
+     * by a {@link SubstringMatcher}, in one pass over the user property
+     */
+    static final class PatternClause implements Clause {
+        private final SubstringMatcher matcher;
+        private final int id;
+
+        PatternClause(SubstringMatcher matcher, int id) {
+            this.matcher = matcher;
+            this.id = id;
+        }
+
+        @Override
+        public boolean match(EvaluationContext context) {
+            long[] matched = context.getMatchedPatterns(matcher);
+            return (matched[id >>> 6] & (1L << id)) != 0;
+        }
+    }
+
+    static final class OneOfClause implements Clause {
+        private final AttributeSlots.Attribute attribute;
+        private final Set<String> values;
+
+        OneOfClause(String property, Set<String> values) {
+            this.attribute = AttributeSlots.Attribute.of(property);
+            this.values = values;
+        }
+
+        @Override
+        public boolean match(EvaluationContext context) {
+            String pv = context.getProperty(attribute);
+            return pv != null && values.contains(pv);
+        }
+
+        AttributeSlots.Attribute getAttribute() {
+            return attribute;
+        }
+
+        Set<String> getValues() {
+            return values;
+        }
+    }
+
+    static final class BooleanClause implements Clause {
+        private final AttributeSlots.Attribute attribute;
+        private final String value;
+
+        BooleanClause(String property, String value) {
+            this.attribute = AttributeSlots.Attribute.of(property);
+            this.value = value;
+        }
+
+        @Override
+        public boolean match(EvaluationContext context) {
+            String pv = context.getProperty(attribute);
+            return pv != null && pv.equalsIgnoreCase(value);
+        }
+    }
+
+    /**
+     * MatchRegex/NotMatchRegex clause, the pattern is compiled once with the flag.
+     * <p>
+     * If a step budget is set in the {@link EvaluationContext}, the match aborts as soon as it has read more characters
+     * of the user property than the budget, whatever the pattern backtracks; an aborted or an invalid pattern fails closed:
+     * neither MatchRegex nor NotMatchRegex is matched.
+     */
+    static final class RegexClause implements Clause {
+        private final AttributeSlots.Attribute attribute;
+        private final Pattern pattern;
+        private final boolean negate;
+
+        private RegexClause(String property, Pattern pattern, boolean negate) {
+            this.attribute = AttributeSlots.Attribute.of(property);
+            this.pattern = pattern;
+            this.negate = negate;
+        }
+
+        static Clause of(String property, String regex, boolean negate) {
+            if (regex == null) {
+                return negate ? not(NEVER) : NEVER;
+            }
+            try {
+                return new RegexClause(property, Pattern.compile(regex), negate);
+            } catch (PatternSyntaxException e) {
+                Loggers.EVALUATION.warn("FB JAVA SDK: invalid regex {}", regex);
+                return NEVER;
+            }
+        }
+
+        @Override
+        public boolean match(EvaluationContext context) {
+            String pv = context.getProperty(attribute);
+            if (pv == null) {
+                return negate;
+            }
+            int budget = context.getRegexMatchStepBudget();
+            if (budget <= 0) {
+                return pattern.matcher(pv).matches() != negate;
+            }
+            try {
+                return pattern.matcher(new BoundedCharSequence(pv, budget)).matches() != negate;
+            } catch (BudgetExceededException e) {
+                Loggers.EVALUATION.debug("FB JAVA SDK: regex {} exceeded the step budget {}", pattern, budget);
+                return false;
+            }
+        }
+    }
+
+    private static final class BudgetExceededException extends RuntimeException {
+        private static final BudgetExceededException INSTANCE = new BudgetExceededException();
+
+        private BudgetExceededException() {
+            super("regex step budget exceeded", null, false, false);
+        }
+    }
+
+    /**
+     * counts every character read by the regex engine, backtracking included
+     */
+    private static final class BoundedCharSequence implements CharSequence {
+        private final CharSequence inner;
+        private int remaining;
+
+        BoundedCharSequence(CharSequence inner, int budget) {
+            this.inner = inner;
+            this.remaining = budget;
+        }
+
+        @Override
+        public int length() {
+            return inner.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (--remaining < 0) {
+                throw BudgetExceededException.INSTANCE;
+            }
+            return inner.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new BoundedCharSequence(inner.subSequence(start, end), remaining);
+        }
+
+        @Override
+        public String toString() {
+            return inner.toString();
+        }
+    }
+
+    static final class InSegmentClause implements Clause {
+        private final String[] segmentIds;
+
+        InSegmentClause(Set<String> segmentIds) {
+            this.segmentIds = segmentIds.toArray(new String[0]);
+        }
+
+        @Override
+        public boolean match(EvaluationContext context) {
+            for (String segmentId : segmentIds) {
+                DataModel.Segment segment = context.getSegment(segmentId);
+                if (segment != null && context.isInSegment(segment)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * checks the membership of the user in a segment, the included/excluded keys first, then the rules
+     */
+    static boolean matchSegment(DataModel.Segment segment, EvaluationContext context) {
+        Boolean userInSegment = context.getExplicitMembership(segment);
+        if (userInSegment != null) {
+            return userInSegment;
+        }
+        List<DataModel.TargetRule> rules = segment.getRules();
+        for (int i = 0; i < rules.size(); i++) {
+            if (matchAll(rules.get(i).getClauses(), context)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -7,6 +7,7 @@ import co.featbit.server.exterior.HttpConfig;
 final class ContextImp implements Context {
     private final HttpConfig httpConfig;
     private final BasicConfig basicConfig;
+    private final int massiveSegmentThreshold;
 
     ContextImp(String envSecret, FBConfig config) {
         this.basicConfig = new BasicConfig(envSecret,
@@ -14,11 +15,17 @@ final class ContextImp implements Context {
                 config.getStreamingURL(),
                 config.getEventURL());
         this.httpConfig = config.getHttpConfigFactory().createHttpConfig(basicConfig);
+        this.massiveSegmentThreshold = config.getMassiveSegmentThreshold();
     }
 
     ContextImp(HttpConfig httpConfig, BasicConfig basicConfig) {
         this.httpConfig = httpConfig;
         this.basicConfig = basicConfig;
+        this.massiveSegmentThreshold = 0;
+    }
+
+    int getMassiveSegmentThreshold() {
+        return massiveSegmentThreshold;
     }
 
     @Override
@@ -4,17 +4,20 @@ import co.featbit.commons.json.JsonHelper;
 import co.featbit.server.exterior.DataStorageTypes;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.JsonAdapter;
-import com.google.gson.reflect.TypeToken;
+import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class DataModel {
 
@@ -172,9 +175,13 @@ public abstract class DataModel {
         final Date updatedAt;
         @Expose(deserialize = false)
         private Long timestamp;
-        private final List<String> included;
-        private final List<String> excluded;
+        // the lists are only read by json deserialization, they are released once indexed
+        private List<String> included;
+        private List<String> excluded;
         private final List<TargetRule> rules;
+        // built by buildKeySets, once the massive threshold is known
+        private transient volatile KeySets.KeySet includedKeys;
+        private transient volatile KeySets.KeySet excludedKeys;
 
         Segment(String id, Boolean isArchived, Date updatedAt, List<String> included, List<String> excluded, List<TargetRule> rules) {
             this.id = id;
@@ -205,12 +212,22 @@ public abstract class DataModel {
             return FB_SEGMENT;
         }
 
-        public List<String> getIncluded() {
-            return included == null ? Collections.emptyList() : included;
+        public KeySets.KeySet getIncluded() {
+            KeySets.KeySet keys = includedKeys;
+            if (keys == null) {
+                buildKeySets(0);
+                keys = includedKeys;
+            }
+            return keys;
         }
 
-        public List<String> getExcluded() {
-            return excluded == null ? Collections.emptyList() : excluded;
+        public KeySets.KeySet getExcluded() {
+            KeySets.KeySet keys = excludedKeys;
+            if (keys == null) {
+                buildKeySets(0);
+                keys = excludedKeys;
+            }
+            return keys;
         }
 
         public List<TargetRule> getRules() {
@@ -233,9 +250,29 @@ public abstract class DataModel {
             return new ArchivedItem(this.id, this.timestamp);
         }
 
+        /**
+         * builds the included/excluded key sets from the parsed keys and releases the lists, the massive ones are held
+         * outside the heap. Called by the data storage before the segment is published, otherwise on the first read.
+         * The key sets are built once.
+         *
+         * @param massiveThreshold the min number of keys held outside the heap, 0 or negative if disabled
+         */
+        synchronized void buildKeySets(int massiveThreshold) {
+            if (includedKeys != null) {
+                return;
+            }
+            this.excludedKeys = KeySets.of(excluded, massiveThreshold);
+            this.excluded = null;
+            this.includedKeys = KeySets.of(included, massiveThreshold);
+            this.included = null;
+        }
+
         @Override
         public void afterDeserialization() {
             this.timestamp = updatedAt.getTime();
+            if (!isArchived()) {
+                getRules().forEach(TargetRule::compile);
+            }
         }
 
         @Override
@@ -264,6 +301,13 @@ public abstract class DataModel {
         private final String disabledVariationId;
         @Expose(serialize = false, deserialize = false)
         private Map<String, Variation> variationMap;
+        private transient Set<String> segmentIds;
+        private transient Map<String, String> targetedVariationIds;
+        // the variation and the result of a flag whose evaluation doesn't depend on the user, see foldConstant
+        private transient Variation constantVariation;
+        private transient Evaluator.EvalResult constantResult;
+        // null if the rules are evaluated one after the other
+        private transient RuleIndex ruleIndex;
 
         FeatureFlag(String id, Date updatedAt, boolean isArchived, boolean exptIncludeAllTargets, boolean isEnabled, String name, String key, String variationType, List<Variation> variations, List<TargetUser> targetUsers, List<TargetRule> rules, Fallthrough fallthrough, String disabledVariationId) {
             this.id = id;
@@ -325,6 +369,23 @@ public abstract class DataModel {
             return targetUsers == null ? Collections.emptyList() : targetUsers;
         }
 
+        /**
+         * returns the variation id of the first target users list containing the given user key
+         *
+         * @param userKeyId user key
+         * @return a variation id or null if the user is not individually targeted
+         */
+        String getTargetedVariationId(String userKeyId) {
+            return targetedVariationIds.get(userKeyId);
+        }
+
+        /**
+         * @return the variation ids of the individually targeted users by user key, the first target users list wins
+         */
+        Map<String, String> getTargetedVariationIds() {
+            return targetedVariationIds == null ? Collections.emptyMap() : targetedVariationIds;
+        }
+
         public List<TargetRule> getRules() {
             return rules == null ? Collections.emptyList() : rules;
         }
@@ -349,16 +410,74 @@ public abstract class DataModel {
             return variationType;
         }
 
+        /**
+         * @return the dispatch index of the rules, null if the rules are evaluated one after the other
+         */
+        RuleIndex getRuleIndex() {
+            return ruleIndex;
+        }
+
+        /**
+         * @return the variation given to every user, null if the evaluation depends on the user
+         */
+        Variation getConstantVariation() {
+            return constantVariation;
+        }
+
+        /**
+         * @return the result given to every user, null if the evaluation or whether to send to experiment depends on the user
+         */
+        Evaluator.EvalResult getConstantResult() {
+            return constantResult;
+        }
+
+        /**
+         * finds whether the evaluation gives the same variation to every user: the flag is off,
+         * or it has no target users, no rules and the first variation of the fallthrough is served to 100% of the users.
+         * Whether to send to experiment is constant too if the experiment doesn't split the users.
+         */
+        private void foldConstant() {
+            if (!isEnabled) {
+                constantVariation = getVariation(disabledVariationId);
+                if (constantVariation != null) {
+                    constantResult = getResult(constantVariation, EvaluationReason.REASON_FLAG_OFF, false);
+                }
+                return;
+            }
+            if (!targetedVariationIds.isEmpty() || !getRules().isEmpty() || fallthrough == null || fallthrough.getVariations().isEmpty()) {
+                return;
+            }
+            RolloutVariation rollout = fallthrough.getVariations().get(0);
+            double[] range = rollout.getRollout();
+            if (range == null || range.length < 2 || range[0] != 0D || range[1] != 1D) {
+                return;
+            }
+            constantVariation = getVariation(rollout.getId());
+            if (constantVariation == null) {
+                return;
+            }
+            boolean sendToExperiment;
+            if (exptIncludeAllTargets || !fallthrough.includedInExpt() || rollout.getExptRollout() == 0D) {
+                sendToExperiment = exptIncludeAllTargets;
+            } else if (rollout.getExptRollout() >= rollout.splittingPercentage()) {
+                sendToExperiment = true;
+            } else {
+                // the experiment splits the users
+                return;
+            }
+            constantResult = getResult(constantVariation, EvaluationReason.REASON_FALLTHROUGH, sendToExperiment);
+        }
+
+        /**
+         * returns the evaluation result of a variation of this flag, a shared instance if the variation comes from this version
+         */
+        Evaluator.EvalResult getResult(Variation variation, String reason, boolean sendToExperiment) {
+            Evaluator.EvalResult result = variation.getResult(reason, sendToExperiment);
+            return result != null ? result : Evaluator.EvalResult.of(variationType, variation, reason, sendToExperiment, key, name);
+        }
+
         Boolean containsSegment(String segmentId) {
-            return getRules().stream()
-                    .flatMap(rule -> rule.getConditions().stream())
-                    .filter(cond -> StringUtils.isBlank(cond.getOp()))
-                    .flatMap(cond -> {
-                        List<String> segments = JsonHelper
-                                .deserialize(cond.getValue(), new TypeToken<List<String>>() {
-                                }.getType());
-                        return segments.stream();
-                    }).collect(Collectors.toList()).contains(segmentId);
+            return segmentIds.contains(segmentId);
         }
 
         @Override
@@ -367,10 +486,41 @@ public abstract class DataModel {
             if (!isArchived) {
                 ImmutableMap.Builder<String, Variation> builder = ImmutableMap.builder();
                 for (Variation variation : getVariations()) {
+                    variation.prepare(variationType);
+                    variation.prepareResults(this);
                     builder.put(variation.id, variation);
                 }
                 this.variationMap = builder.build();
+                // the first target users list that contains a user key wins
+                Map<String, String> targetedVariationIds = new HashMap<>();
+                for (TargetUser targetUser : getTargetUsers()) {
+                    if (targetUser.getVariationId() == null) {
+                        continue;
+                    }
+                    for (String keyId : targetUser.getKeyIds()) {
+                        if (keyId != null) {
+                            targetedVariationIds.putIfAbsent(keyId, targetUser.getVariationId());
+                        }
+                    }
+                }
+                this.targetedVariationIds = ImmutableMap.copyOf(targetedVariationIds);
+                getRules().forEach(TargetRule::compile);
+                SubstringMatcher.share(getRules());
+                this.ruleIndex = RuleIndex.of(getRules());
+                if (fallthrough != null) {
+                    fallthrough.compile();
+                }
+                foldConstant();
             }
+            ImmutableSet.Builder<String> segmentIds = ImmutableSet.builder();
+            for (TargetRule rule : getRules()) {
+                for (Condition condition : rule.getConditions()) {
+                    if (StringUtils.isBlank(condition.getOp())) {
+                        segmentIds.addAll(Clauses.parseSet(condition.getValue()));
+                    }
+                }
+            }
+            this.segmentIds = segmentIds.build();
         }
 
         @Override
@@ -380,8 +530,26 @@ public abstract class DataModel {
     }
 
     static final class Variation {
+        // the required types a value is compatible with, see Utils#checkType
+        static final int BOOLEAN_TYPE = 1;
+        static final int NUMBER_TYPE = 1 << 1;
+        static final int STRING_TYPE = 1 << 2;
+        static final int OBJECT_TYPE = 1 << 3;
+        private static final int PREPARED = 1 << 4;
+        private static final int PARSED_NUMBER = 1 << 5;
+        // the reasons of the evaluation stages giving a variation
+        private static final String[] SHARED_REASONS = {EvaluationReason.REASON_FLAG_OFF, EvaluationReason.REASON_TARGET_MATCH,
+                EvaluationReason.REASON_RULE_MATCH, EvaluationReason.REASON_FALLTHROUGH};
+
         private final String id;
         private final String value;
+        private transient int typeMask;
+        private transient boolean booleanValue;
+        private transient double doubleValue;
+        // the json objects deserialized from the value, by class, see FBConfig.Builder#cacheJsonVariations
+        private transient volatile Map<Class<?>, Object> jsonObjects;
+        // the evaluation results giving this variation, by reason and whether to send to experiment
+        private transient Evaluator.EvalResult[] results;
 
         Variation(String id, String value) {
             this.id = id;
@@ -395,6 +563,118 @@ public abstract class DataModel {
         public String getValue() {
             return value;
         }
+
+        static int typeOf(Class<?> requiredType) {
+            if (requiredType == Boolean.class) {
+                return BOOLEAN_TYPE;
+            }
+            if (requiredType == Integer.class || requiredType == Long.class || requiredType == Double.class) {
+                return NUMBER_TYPE;
+            }
+            return requiredType == String.class ? STRING_TYPE : OBJECT_TYPE;
+        }
+
+        /**
+         * computes once the typed forms of the value and the required types it is compatible with
+         *
+         * @param variationType the variation type of the flag
+         */
+        void prepare(String variationType) {
+            int mask = PREPARED;
+            if (Utils.checkType(variationType, Boolean.class, value)) mask |= BOOLEAN_TYPE;
+            if (Utils.checkType(variationType, Double.class, value)) mask |= NUMBER_TYPE;
+            if (Utils.checkType(variationType, String.class, value)) mask |= STRING_TYPE;
+            if (Utils.checkType(variationType, Object.class, value)) mask |= OBJECT_TYPE;
+            this.booleanValue = BooleanUtils.toBoolean(value);
+            if (value != null) {
+                try {
+                    this.doubleValue = Double.parseDouble(value);
+                    mask |= PARSED_NUMBER;
+                } catch (NumberFormatException ignore) {
+                    // a non numeric value is parsed by the caller, who gets the same error as without the cached forms
+                }
+            }
+            this.typeMask = mask;
+        }
+
+        /**
+         * builds the immutable evaluation results that give this variation, shared by all the evaluations of a flag version
+         */
+        void prepareResults(FeatureFlag flag) {
+            Evaluator.EvalResult[] results = new Evaluator.EvalResult[SHARED_REASONS.length * 2];
+            for (int i = 0; i < SHARED_REASONS.length; i++) {
+                results[i * 2] = Evaluator.EvalResult.of(flag.getVariationType(), this, SHARED_REASONS[i], false, flag.getKey(), flag.getName());
+                results[i * 2 + 1] = Evaluator.EvalResult.of(flag.getVariationType(), this, SHARED_REASONS[i], true, flag.getKey(), flag.getName());
+            }
+            this.results = results;
+        }
+
+        /**
+         * @return the shared evaluation result or null if the reason is not one of a matched variation
+         */
+        Evaluator.EvalResult getResult(String reason, boolean sendToExperiment) {
+            if (results != null) {
+                for (int i = 0; i < SHARED_REASONS.length; i++) {
+                    if (SHARED_REASONS[i].equals(reason)) {
+                        return results[sendToExperiment ? i * 2 + 1 : i * 2];
+                    }
+                }
+            }
+            return null;
+        }
+
+        boolean isPrepared() {
+            return (typeMask & PREPARED) != 0;
+        }
+
+        boolean isCompatible(Class<?> requiredType) {
+            return (typeMask & typeOf(requiredType)) != 0;
+        }
+
+        boolean isParsedNumber() {
+            return (typeMask & PARSED_NUMBER) != 0;
+        }
+
+        boolean getBooleanValue() {
+            return booleanValue;
+        }
+
+        double getDoubleValue() {
+            return doubleValue;
+        }
+
+        /**
+         * returns the json object deserialized from the value, the object is deserialized once by class
+         * and shared between the callers, a new version of the flag comes with new variations and then new objects.
+         *
+         * @param clazz        json deserialization class
+         * @param defaultValue the value returned if the deserialization fails, it's never cached
+         * @return a shared json object or the default value
+         */
+        <T> T getJsonObject(Class<T> clazz, T defaultValue) {
+            Map<Class<?>, Object> cache = jsonObjects;
+            if (cache == null) {
+                synchronized (this) {
+                    cache = jsonObjects;
+                    if (cache == null) {
+                        cache = new ConcurrentHashMap<>();
+                        jsonObjects = cache;
+                    }
+                }
+            }
+            Object object = cache.get(clazz);
+            if (object == null) {
+                T parsed = Utils.parseJsonObject(value, null, clazz, false);
+                if (parsed == null) {
+                    return defaultValue;
+                }
+                object = cache.putIfAbsent(clazz, parsed);
+                if (object == null) {
+                    return parsed;
+                }
+            }
+            return clazz.cast(object);
+        }
     }
 
     static final class TargetUser {
@@ -429,6 +709,9 @@ public abstract class DataModel {
 
         private final List<RolloutVariation> variations;
 
+        private transient List<Clauses.Clause> clauses;
+        private transient AttributeSlots.Attribute dispatchAttribute;
+
         TargetRule(boolean includedInExpt, String dispatchKey, List<Condition> conditions, List<RolloutVariation> variations) {
             this.includedInExpt = includedInExpt;
             this.dispatchKey = dispatchKey;
@@ -451,6 +734,26 @@ public abstract class DataModel {
         public String getDispatchKey() {
             return dispatchKey;
         }
+
+        List<Clauses.Clause> getClauses() {
+            return clauses;
+        }
+
+        AttributeSlots.Attribute getDispatchAttribute() {
+            return dispatchAttribute;
+        }
+
+        void compile() {
+            this.clauses = Clauses.compile(getConditions());
+            this.dispatchAttribute = dispatchAttributeOf(dispatchKey);
+        }
+
+        /**
+         * replaces the compiled clauses by equivalent ones, while the flag is compiled
+         */
+        void setClauses(List<Clauses.Clause> clauses) {
+            this.clauses = clauses;
+        }
     }
 
     static final class Condition {
@@ -517,6 +820,8 @@ public abstract class DataModel {
 
         private final List<RolloutVariation> variations;
 
+        private transient AttributeSlots.Attribute dispatchAttribute;
+
         Fallthrough(boolean includedInExpt, String dispatchKey, List<RolloutVariation> variations) {
             this.includedInExpt = includedInExpt;
             this.dispatchKey = dispatchKey;
@@ -534,7 +839,19 @@ public abstract class DataModel {
         public String getDispatchKey() {
             return dispatchKey;
         }
+
+        AttributeSlots.Attribute getDispatchAttribute() {
+            return dispatchAttribute;
+        }
+
+        void compile() {
+            this.dispatchAttribute = dispatchAttributeOf(dispatchKey);
+        }
     }
 
+    // the user attribute that splits the users between the rollout variations, the user key by default
+    static AttributeSlots.Attribute dispatchAttributeOf(String dispatchKey) {
+        return AttributeSlots.Attribute.of(StringUtils.isEmpty(dispatchKey) ? "keyid" : dispatchKey);
+    }
 
 }
@@ -0,0 +1,96 @@
+package co.featbit.server;
+
+import co.featbit.server.exterior.DataStorage;
+import co.featbit.server.exterior.DataStorageTypes;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+
+/**
+ * the flags and segments of a data storage at a given version.
+ * <p>
+ * The evaluations run against a snapshot are consistent with each other, whatever the updates received meanwhile.
+ * The snapshot of an {@link InMemoryDataStorage} shares its immutable maps, it's taken without any copy,
+ * and its {@link UserKeyIndex} while the storage is at the version of the snapshot.
+ */
+final class DataSnapshot {
+
+    private final long version;
+
+    private final Map<String, DataStorageTypes.Item> flags;
+
+    private final Map<String, DataStorageTypes.Item> segments;
+
+    // null if the user keys are not indexed
+    private final UserKeyIndex userKeyIndex;
+
+    DataSnapshot(long version, Map<String, DataStorageTypes.Item> flags, Map<String, DataStorageTypes.Item> segments) {
+        this(version, flags, segments, null);
+    }
+
+    DataSnapshot(long version, Map<String, DataStorageTypes.Item> flags, Map<String, DataStorageTypes.Item> segments, UserKeyIndex userKeyIndex) {
+        this.version = version;
+        this.flags = flags == null ? ImmutableMap.of() : flags;
+        this.segments = segments == null ? ImmutableMap.of() : segments;
+        this.userKeyIndex = userKeyIndex;
+    }
+
+    /**
+     * takes a snapshot of a data storage, the items of a storage other than {@link InMemoryDataStorage} are copied
+     *
+     * @param storage the data storage
+     * @return a snapshot
+     */
+    static DataSnapshot of(DataStorage storage) {
+        if (storage instanceof InMemoryDataStorage) {
+            return ((InMemoryDataStorage) storage).snapshot();
+        }
+        long version = storage.getVersion();
+        return new DataSnapshot(version, storage.getAll(DataStorageTypes.FEATURES), storage.getAll(DataStorageTypes.SEGMENTS));
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the flag or null if not found or archived
+     */
+    DataModel.FeatureFlag getFlag(String key) {
+        DataStorageTypes.Item item = flags.get(key);
+        return item == null || item.isArchived() ? null : (DataModel.FeatureFlag) item;
+    }
+
+    /**
+     * @return the segment or null if not found or archived
+     */
+    DataModel.Segment getSegment(String id) {
+        DataStorageTypes.Item item = segments.get(id);
+        return item == null || item.isArchived() ? null : (DataModel.Segment) item;
+    }
+
+    /**
+     * @return the flags that are not archived
+     */
+    Iterable<DataModel.FeatureFlag> getFlags() {
+        return () -> flags.values().stream()
+                .filter(item -> !item.isArchived())
+                .map(item -> (DataModel.FeatureFlag) item)
+                .iterator();
+    }
+
+    /**
+     * @param attributeSlots the attribute slots of the client
+     * @return an evaluator whose flags and segments are read from this snapshot
+     */
+    Evaluator newEvaluator(int regexMatchStepBudget, AttributeSlots attributeSlots) {
+        return new EvaluatorImp(this::getFlag, this::getSegment, regexMatchStepBudget, attributeSlots, userKeyIndex == null ? null : this::getUserKeyEntry);
+    }
+
+    /**
+     * @return the segments and the flags of this snapshot naming a user key, null if unknown
+     */
+    UserKeyIndex.Entry getUserKeyEntry(String userKey) {
+        return userKeyIndex == null ? null : userKeyIndex.lookup(userKey, version);
+    }
+}
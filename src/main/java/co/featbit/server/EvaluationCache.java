@@ -0,0 +1,172 @@
+package co.featbit.server;
+
+import co.featbit.commons.model.FBUser;
+import com.google.common.base.MoreObjects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * the opt-in cache of the evaluation results, see {@link FBConfig.Builder#evaluationCache(int, Duration)}.
+ * <p>
+ * A result is cached by user attributes, flag key and flag version, for the version of the data storage
+ * it was evaluated with: the cache is invalidated as soon as the storage accepts a newer version, a segment update
+ * may change the result of a flag whose version didn't change.
+ * A cached result gives the same insight event as an evaluation.
+ */
+public final class EvaluationCache {
+
+    private final Evaluator evaluator;
+
+    private final LongSupplier storageVersion;
+
+    private final Cache<Key, Evaluator.EvalResult> cache;
+
+    private volatile long version;
+
+    EvaluationCache(Evaluator evaluator, LongSupplier storageVersion, int maxSize, Duration expireAfterWrite) {
+        this.evaluator = evaluator;
+        this.storageVersion = storageVersion;
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats();
+        if (expireAfterWrite != null && !expireAfterWrite.isZero() && !expireAfterWrite.isNegative()) {
+            builder.expireAfterWrite(expireAfterWrite.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        this.cache = builder.build();
+    }
+
+    /**
+     * returns the cached result of a flag for a user or evaluates it
+     *
+     * @param flag  the flag
+     * @param user  the user
+     * @param event the insight event the variation is added to, may be null
+     * @return the evaluation result
+     */
+    Evaluator.EvalResult evaluate(DataModel.FeatureFlag flag, FBUser user, InsightTypes.Event event) {
+        // the version is read before the evaluation, a result is never cached for an older version than its data
+        long current = storageVersion.getAsLong();
+        if (current != version) {
+            version = current;
+            cache.invalidateAll();
+        }
+        Key key = new Key(user, flag.getKey(), flag.getTimestamp(), current);
+        Evaluator.EvalResult res = cache.getIfPresent(key);
+        if (res == null) {
+            res = evaluator.evaluate(flag, user, event);
+            if (res != null) {
+                cache.put(key, res);
+            }
+            return res;
+        }
+        if (event != null) {
+            event.add(InsightTypes.FlagEventVariation.of(flag.getKey(), res));
+        }
+        return res;
+    }
+
+    Stats getStats() {
+        CacheStats stats = cache.stats();
+        return new Stats(stats.hitCount(), stats.missCount(), stats.evictionCount(), cache.size());
+    }
+
+    private static final class Key {
+        private final FBUser user;
+        private final String flagKey;
+        private final long flagVersion;
+        private final long storageVersion;
+        private final int hash;
+
+        Key(FBUser user, String flagKey, long flagVersion, long storageVersion) {
+            this.user = user;
+            this.flagKey = flagKey;
+            this.flagVersion = flagVersion;
+            this.storageVersion = storageVersion;
+            this.hash = Objects.hash(user, flagKey, flagVersion, storageVersion);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return hash == key.hash && flagVersion == key.flagVersion && storageVersion == key.storageVersion
+                    && flagKey.equals(key.flagKey) && user.equals(key.user);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * the statistics of the evaluation cache since the client was created
+     */
+    public static final class Stats {
+
+        public static final Stats EMPTY = new Stats(0, 0, 0, 0);
+
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final long size;
+
+        Stats(long hitCount, long missCount, long evictionCount, long size) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.size = size;
+        }
+
+        /**
+         * @return the number of evaluations answered by the cache
+         */
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        /**
+         * @return the number of evaluations not found in the cache
+         */
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /**
+         * @return the number of results evicted by size or by time, the invalidated results are not counted
+         */
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        /**
+         * @return the approximate number of cached results
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the ratio of the evaluations answered by the cache, 1 if no evaluation
+         */
+        public double getHitRate() {
+            long requestCount = hitCount + missCount;
+            return requestCount == 0 ? 1D : (double) hitCount / requestCount;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("hitCount", hitCount)
+                    .add("missCount", missCount)
+                    .add("evictionCount", evictionCount)
+                    .add("size", size)
+                    .toString();
+        }
+    }
+}
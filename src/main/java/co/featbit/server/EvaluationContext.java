@@ -0,0 +1,237 @@
+package co.featbit.server;
+
+import co.featbit.commons.model.FBUser;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * the state shared by the compiled clauses while a user is evaluated against one or more flags:
+ * the user itself, its attribute values by {@link AttributeSlots slot} and the evaluator that gives access
+ * to the segments and the evaluation options.
+ * <p>
+ * A custom attribute is looked up once, the first time a clause reads its slot, and then read from an array,
+ * the membership of the user in a segment is resolved once too. If the data indexes the user keys, the segments
+ * and the flags naming the user key explicitly are found with a single lookup, see {@link UserKeyIndex}.
+ * A context is not thread safe, it is prepared for a user in a thread by {@link Evaluator#prepare(FBUser)}.
+ * The evaluation stages keep in the context the variation they give with its reason.
+ */
+final class EvaluationContext {
+
+    // the value of a slot whose attribute the user hasn't
+    private static final Object ABSENT = new Object();
+
+    // null while a reusable context is not used, see EvaluatorImp#evaluateVariation
+    private Evaluator evaluator;
+
+    private FBUser user;
+
+    // the attribute slots of the evaluator, null while the context is not used
+    private AttributeSlots slots;
+
+    // null if not yet resolved
+    private Object[] values;
+
+    // the patterns found in the user property of a slot by the matcher owning the slot, null until a matcher runs
+    private SubstringMatcher[] matcherOwners;
+
+    private long[][] matchedPatterns;
+
+    // the membership of the user in the segments resolved so far, by segment version
+    private IdentityHashMap<DataModel.Segment, Boolean> segmentMemberships;
+
+    // the entry of the user key in the index, null if the index can't answer
+    private UserKeyIndex.Entry userKeyEntry;
+
+    private boolean userKeyEntryResolved;
+
+    private DataModel.Variation matchedVariation;
+
+    private String matchedReason;
+
+    private boolean matchedSendToExperiment;
+
+    EvaluationContext(Evaluator evaluator, FBUser user) {
+        this.evaluator = evaluator;
+        this.user = user;
+        this.slots = evaluator == null ? null : evaluator.attributeSlots;
+        this.values = new Object[slots == null ? 0 : slots.size()];
+    }
+
+    /**
+     * prepares the context for another user, the attribute values are resolved again
+     */
+    void reset(FBUser user) {
+        reset(evaluator, user);
+    }
+
+    /**
+     * prepares the context for another user of another evaluator, both null to release them
+     */
+    void reset(Evaluator evaluator, FBUser user) {
+        this.evaluator = evaluator;
+        this.user = user;
+        this.slots = evaluator == null ? null : evaluator.attributeSlots;
+        int size = slots == null ? 0 : slots.size();
+        if (values.length < size) {
+            values = new Object[size];
+        } else {
+            Arrays.fill(values, null);
+        }
+        if (matcherOwners != null) {
+            Arrays.fill(matcherOwners, null);
+        }
+        if (segmentMemberships != null && !segmentMemberships.isEmpty()) {
+            segmentMemberships.clear();
+        }
+        userKeyEntry = null;
+        userKeyEntryResolved = false;
+        matchedVariation = null;
+        matchedReason = null;
+        matchedSendToExperiment = false;
+    }
+
+    boolean isInUse() {
+        return evaluator != null;
+    }
+
+    void match(DataModel.Variation variation, String reason, boolean sendToExperiment) {
+        this.matchedVariation = variation;
+        this.matchedReason = reason;
+        this.matchedSendToExperiment = sendToExperiment;
+    }
+
+    DataModel.Variation getMatchedVariation() {
+        return matchedVariation;
+    }
+
+    String getMatchedReason() {
+        return matchedReason;
+    }
+
+    boolean isMatchedSendToExperiment() {
+        return matchedSendToExperiment;
+    }
+
+    FBUser getUser() {
+        return user;
+    }
+
+    String getProperty(AttributeSlots.Attribute attribute) {
+        return getProperty(attribute.slotIn(slots));
+    }
+
+    String getProperty(int slot) {
+        switch (slot) {
+            case AttributeSlots.KEY:
+                return user.getKey();
+            case AttributeSlots.NAME:
+                return user.getUserName();
+            case AttributeSlots.NONE:
+                return null;
+            default:
+                // the slot was interned after this context was prepared
+                if (slot >= values.length) {
+                    return user.getCustom().get(slots.nameOf(slot));
+                }
+                Object value = values[slot];
+                if (value == null) {
+                    String pv = user.getCustom().get(slots.nameOf(slot));
+                    value = pv == null ? ABSENT : pv;
+                    values[slot] = value;
+                }
+                return value == ABSENT ? null : (String) value;
+        }
+    }
+
+    /**
+     * returns the patterns of a matcher found in the user property, the property is scanned once by matcher
+     *
+     * @param matcher the substring matcher of a flag attribute
+     * @return a bit set of the pattern ids
+     */
+    long[] getMatchedPatterns(SubstringMatcher matcher) {
+        int slot = matcher.getAttribute().slotIn(slots);
+        if (matcherOwners == null || matcherOwners.length <= slot) {
+            int size = Math.max(slots.size(), slot + 1);
+            matcherOwners = matcherOwners == null ? new SubstringMatcher[size] : Arrays.copyOf(matcherOwners, size);
+            matchedPatterns = matchedPatterns == null ? new long[size][] : Arrays.copyOf(matchedPatterns, size);
+        }
+        long[] matched = matchedPatterns[slot];
+        if (matcherOwners[slot] == matcher) {
+            return matched;
+        }
+        // the buffer of the slot is reused for another matcher
+        if (matched == null || matched.length < matcher.getWords()) {
+            matched = new long[matcher.getWords()];
+            matchedPatterns[slot] = matched;
+        } else {
+            Arrays.fill(matched, 0L);
+        }
+        matcher.scan(getProperty(slot), matched);
+        matcherOwners[slot] = matcher;
+        return matched;
+    }
+
+    DataModel.Segment getSegment(String segmentId) {
+        return evaluator.segmentGetter.get(segmentId);
+    }
+
+    /**
+     * returns whether the user is in a segment, a segment is resolved once for the user whatever the number of flags
+     * and rules referencing it. Each version of a segment is a new instance, the membership is resolved again
+     * if the segment is updated while the context is used.
+     *
+     * @param segment a segment
+     * @return true if the user is in the segment
+     */
+    boolean isInSegment(DataModel.Segment segment) {
+        if (segmentMemberships == null) {
+            segmentMemberships = new IdentityHashMap<>();
+        }
+        Boolean member = segmentMemberships.get(segment);
+        if (member == null) {
+            member = Clauses.matchSegment(segment, this);
+            segmentMemberships.put(segment, member);
+        }
+        return member;
+    }
+
+    // looked up once, the first time a flag or a segment checks the user key
+    private UserKeyIndex.Entry getUserKeyEntry() {
+        if (!userKeyEntryResolved) {
+            userKeyEntry = evaluator.userKeyEntryGetter == null ? null : evaluator.userKeyEntryGetter.apply(user.getKey());
+            userKeyEntryResolved = true;
+        }
+        return userKeyEntry;
+    }
+
+    /**
+     * returns the variation id of a flag targeting the user individually
+     *
+     * @param flag a flag
+     * @return a variation id or null if the user is not individually targeted
+     */
+    String getTargetedVariationId(DataModel.FeatureFlag flag) {
+        UserKeyIndex.Entry entry = getUserKeyEntry();
+        return entry == null ? flag.getTargetedVariationId(user.getKey()) : entry.targetedVariationId(flag.getKey());
+    }
+
+    /**
+     * returns whether a segment includes or excludes the user explicitly, see {@link DataModel.Segment#isMatchUser(String)}
+     *
+     * @param segment a segment
+     * @return false if excluded, true if included, null if the segment doesn't name the user key
+     */
+    Boolean getExplicitMembership(DataModel.Segment segment) {
+        UserKeyIndex.Entry entry = getUserKeyEntry();
+        if (entry == null || !UserKeyIndex.isIndexed(segment)) {
+            return segment.isMatchUser(user.getKey());
+        }
+        return entry.membershipIn(segment.getId());
+    }
+
+    int getRegexMatchStepBudget() {
+        return evaluator.regexMatchStepBudget;
+    }
+}
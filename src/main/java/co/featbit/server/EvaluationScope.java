@@ -0,0 +1,129 @@
+package co.featbit.server;
+
+import co.featbit.commons.model.FBUser;
+import co.featbit.server.integrations.FBUserContextHolder;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * An evaluation scope, usually the duration of a request, opened by {@link co.featbit.server.exterior.FBClient#openEvaluationScope(FBUser, boolean)}
+ * and bound to the current thread by {@link FBUserContextHolder}.
+ * <p>
+ * While the scope is open, the evaluations of the client for the user of the scope are made against the version
+ * of the data at the time the scope was opened, a flag is evaluated once and the following calls return the same result.
+ * A flag is reported once in the insight events, all the flags are sent in a single event when the scope is closed.
+ * <pre><code>
+ *     try (EvaluationScope scope = client.openEvaluationScope(user, false)) {
+ *         if (client.boolVariation("flag-key", user, false)) {
+ *             ...
+ *         }
+ *     }
+ * </code></pre>
+ * A scope is thread safe, it may be inherited by the child threads.
+ */
+public final class EvaluationScope implements AutoCloseable {
+
+    private final Object owner;
+
+    private final FBUser user;
+
+    private final DataSnapshot snapshot;
+
+    private final Evaluator evaluator;
+
+    private final Consumer<InsightTypes.Event> eventHandler;
+
+    private final Map<String, Evaluator.EvalResult> results = new ConcurrentHashMap<>();
+
+    private final Set<String> trackedFlagKeys = ConcurrentHashMap.newKeySet();
+
+    private final InsightTypes.FlagEvent event;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    EvaluationScope(Object owner, FBUser user, DataSnapshot snapshot, int regexMatchStepBudget, AttributeSlots attributeSlots, Consumer<InsightTypes.Event> eventHandler) {
+        this.owner = owner;
+        this.user = user;
+        this.snapshot = snapshot;
+        this.evaluator = snapshot.newEvaluator(regexMatchStepBudget, attributeSlots);
+        this.eventHandler = eventHandler;
+        this.event = InsightTypes.FlagEvent.of(user);
+    }
+
+    /**
+     * @return the user of the scope
+     */
+    public FBUser getUser() {
+        return user;
+    }
+
+    /**
+     * @return the version of the data the flags are evaluated against
+     */
+    public long getVersion() {
+        return snapshot.getVersion();
+    }
+
+    /**
+     * @return true if the scope is closed
+     */
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * returns whether the evaluations of a client for a user are made in this scope
+     */
+    boolean isScopeOf(Object client, FBUser user) {
+        return owner == client && !closed.get() && (this.user == user || this.user.equals(user));
+    }
+
+    DataModel.FeatureFlag getFlag(String featureFlagKey) {
+        return snapshot.getFlag(featureFlagKey);
+    }
+
+    /**
+     * returns the result of a flag, the flag is evaluated once in the scope
+     */
+    Evaluator.EvalResult evaluate(DataModel.FeatureFlag flag) {
+        return results.computeIfAbsent(flag.getKey(), key -> evaluator.evaluate(flag, user, null));
+    }
+
+    /**
+     * adds the result of a flag to the insight event of the scope, once by flag
+     */
+    void track(String featureFlagKey, Evaluator.EvalResult res) {
+        if (!trackedFlagKeys.add(featureFlagKey)) {
+            return;
+        }
+        InsightTypes.FlagEventVariation variation = InsightTypes.FlagEventVariation.of(featureFlagKey, res);
+        synchronized (event) {
+            if (!closed.get()) {
+                event.add(variation);
+                return;
+            }
+        }
+        // tracked after the scope was closed
+        eventHandler.accept(InsightTypes.FlagEvent.of(user).add(variation));
+    }
+
+    /**
+     * sends the insight event of the scope and unbinds the scope from the current thread
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (event) {
+            if (event.isSendEvent()) {
+                eventHandler.accept(event);
+            }
+        }
+        FBUserContextHolder.removeScope(this);
+    }
+}
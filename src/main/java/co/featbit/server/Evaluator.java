@@ -3,8 +3,11 @@ package co.featbit.server;
 import co.featbit.commons.model.EvalDetail;
 import co.featbit.commons.model.FBUser;
 import co.featbit.server.exterior.DataStorageTypes;
+import org.apache.commons.lang3.BooleanUtils;
 import org.slf4j.Logger;
 
+import java.util.function.Function;
+
 /**
  * Evaluation process is totally isolated from update process and data storage
  */
@@ -51,14 +54,77 @@ abstract class Evaluator implements EvaluationReason {
 
     protected final Getter<DataModel.Segment> segmentGetter;
 
+    protected final int regexMatchStepBudget;
+
+    protected final AttributeSlots attributeSlots;
+
+    // the segments and the flags naming a user key, null if the user keys are not indexed
+    protected final Function<String, UserKeyIndex.Entry> userKeyEntryGetter;
+
     Evaluator(Getter<DataModel.FeatureFlag> flagGetter,
               Getter<DataModel.Segment> segmentGetter) {
+        this(flagGetter, segmentGetter, 0);
+    }
+
+    /**
+     * @param regexMatchStepBudget the max number of characters a MatchRegex/NotMatchRegex condition may read
+     *                             while matching a user property, 0 or negative if unbounded
+     */
+    Evaluator(Getter<DataModel.FeatureFlag> flagGetter,
+              Getter<DataModel.Segment> segmentGetter,
+              int regexMatchStepBudget) {
+        this(flagGetter, segmentGetter, regexMatchStepBudget, new AttributeSlots());
+    }
+
+    /**
+     * @param attributeSlots the attribute slots of the client, shared by its evaluators
+     */
+    Evaluator(Getter<DataModel.FeatureFlag> flagGetter,
+              Getter<DataModel.Segment> segmentGetter,
+              int regexMatchStepBudget,
+              AttributeSlots attributeSlots) {
+        this(flagGetter, segmentGetter, regexMatchStepBudget, attributeSlots, null);
+    }
+
+    /**
+     * @param userKeyEntryGetter gives the entry of a user key in the {@link UserKeyIndex} of the data, null if not indexed
+     */
+    Evaluator(Getter<DataModel.FeatureFlag> flagGetter,
+              Getter<DataModel.Segment> segmentGetter,
+              int regexMatchStepBudget,
+              AttributeSlots attributeSlots,
+              Function<String, UserKeyIndex.Entry> userKeyEntryGetter) {
         this.flagGetter = flagGetter;
         this.segmentGetter = segmentGetter;
+        this.regexMatchStepBudget = regexMatchStepBudget;
+        this.attributeSlots = attributeSlots;
+        this.userKeyEntryGetter = userKeyEntryGetter;
     }
 
     abstract EvalResult evaluate(DataModel.FeatureFlag flag, FBUser user, InsightTypes.Event event);
 
+    /**
+     * evaluates a flag for a user already prepared by {@link #prepare(FBUser)},
+     * a context is reused to evaluate several flags for the same user
+     */
+    EvalResult evaluate(DataModel.FeatureFlag flag, EvaluationContext context, InsightTypes.Event event) {
+        return evaluate(flag, context.getUser(), event);
+    }
+
+    /**
+     * evaluates a flag straight to its variation, no insight is recorded and nothing is allocated if the evaluator allows it
+     *
+     * @return the variation or null if the flag gives no variation for the user
+     */
+    DataModel.Variation evaluateVariation(DataModel.FeatureFlag flag, FBUser user) {
+        EvalResult res = evaluate(flag, user, null);
+        return res == null ? null : res.variation;
+    }
+
+    EvaluationContext prepare(FBUser user) {
+        return new EvaluationContext(this, user);
+    }
+
     @FunctionalInterface
     interface Getter<T extends DataStorageTypes.Item> {
         T get(String key);
@@ -72,10 +138,23 @@ abstract class Evaluator implements EvaluationReason {
         private final boolean sendToExperiment;
         private final String keyName;
         private final String name;
+        // the variation of the value, null if the default value
+        private final DataModel.Variation variation;
+        // the details built from the result, an evaluation result is shared by all the evaluations giving it
+        private EvalDetail<String> stringDetail;
+        private EvalDetail<Boolean> booleanDetail;
+        private EvalDetail<Double> doubleDetail;
+        private EvalDetail<Integer> integerDetail;
+        private EvalDetail<Long> longDetail;
 
 
         EvalResult(String flagType, String value, String index, String reason, boolean sendToExperiment, String keyName, String name) {
+            this(flagType, null, value, index, reason, sendToExperiment, keyName, name);
+        }
+
+        EvalResult(String flagType, DataModel.Variation variation, String value, String index, String reason, boolean sendToExperiment, String keyName, String name) {
             this.flagType = flagType;
+            this.variation = variation;
             this.value = value;
             this.index = index;
             this.reason = reason;
@@ -99,6 +178,7 @@ abstract class Evaluator implements EvaluationReason {
                                     String keyName,
                                     String name) {
             return new EvalResult(flagType,
+                    option,
                     option.getValue(),
                     option.getId(),
                     reason,
@@ -135,6 +215,41 @@ abstract class Evaluator implements EvaluationReason {
             return name;
         }
 
+        /**
+         * checks the value against the required type of a typed variation call, see {@link Utils#checkType}
+         */
+        boolean isCompatible(Class<?> requiredType) {
+            if (variation != null && variation.isPrepared()) {
+                return requiredType != null && variation.isCompatible(requiredType);
+            }
+            return Utils.checkType(flagType, requiredType, value);
+        }
+
+        boolean getBooleanValue() {
+            if (variation != null && variation.isPrepared()) {
+                return variation.getBooleanValue();
+            }
+            return BooleanUtils.toBoolean(value);
+        }
+
+        double getDoubleValue() {
+            if (variation != null && variation.isParsedNumber()) {
+                return variation.getDoubleValue();
+            }
+            return Double.parseDouble(value);
+        }
+
+        /**
+         * deserializes the value into a json object, if cached, the object is shared with the other callers of the same variation
+         */
+        <T> T getJsonObject(T defaultValue, Class<T> clazz, boolean cached) {
+            boolean useDefaultValue = DEFAULT_JSON_VALUE.equals(value);
+            if (cached && variation != null && !useDefaultValue) {
+                return variation.getJsonObject(clazz, defaultValue);
+            }
+            return Utils.parseJsonObject(value, defaultValue, clazz, useDefaultValue);
+        }
+
         public boolean isDefaultValue() {
             return this.index.equals(NO_EVAL_RES);
         }
@@ -142,6 +257,53 @@ abstract class Evaluator implements EvaluationReason {
         public <T> EvalDetail<T> toEvalDetail(T value) {
             return EvalDetail.of(value, isDefaultValue(), this.reason, this.keyName, this.name);
         }
+
+        // the details are immutable, a detail built twice by concurrent threads is harmless
+
+        EvalDetail<String> toStringDetail() {
+            EvalDetail<String> detail = stringDetail;
+            if (detail == null) {
+                detail = toEvalDetail(value);
+                stringDetail = detail;
+            }
+            return detail;
+        }
+
+        EvalDetail<Boolean> toBooleanDetail() {
+            EvalDetail<Boolean> detail = booleanDetail;
+            if (detail == null) {
+                detail = toEvalDetail(getBooleanValue());
+                booleanDetail = detail;
+            }
+            return detail;
+        }
+
+        EvalDetail<Double> toDoubleDetail() {
+            EvalDetail<Double> detail = doubleDetail;
+            if (detail == null) {
+                detail = toEvalDetail(getDoubleValue());
+                doubleDetail = detail;
+            }
+            return detail;
+        }
+
+        EvalDetail<Integer> toIntegerDetail() {
+            EvalDetail<Integer> detail = integerDetail;
+            if (detail == null) {
+                detail = toEvalDetail((int) getDoubleValue());
+                integerDetail = detail;
+            }
+            return detail;
+        }
+
+        EvalDetail<Long> toLongDetail() {
+            EvalDetail<Long> detail = longDetail;
+            if (detail == null) {
+                detail = toEvalDetail((long) getDoubleValue());
+                longDetail = detail;
+            }
+            return detail;
+        }
     }
 
 }
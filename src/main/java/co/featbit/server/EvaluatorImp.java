@@ -1,55 +1,101 @@
 package co.featbit.server;
 
-import co.featbit.commons.json.JsonHelper;
 import co.featbit.commons.model.FBUser;
-import com.google.gson.JsonParseException;
-import com.google.gson.reflect.TypeToken;
-import org.apache.commons.lang3.StringUtils;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.Collection;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.function.Function;
 
 final class EvaluatorImp extends Evaluator {
 
+    // the context reused by each thread to evaluate a flag without insight, see evaluateVariation.
+    // shared by all the evaluators, it refers to an evaluator only while it's used: the short-lived evaluators
+    // of the snapshots are not retained by the threads
+    private static final ThreadLocal<EvaluationContext> reusableContexts = ThreadLocal.withInitial(() -> new EvaluationContext(null, null));
+
     EvaluatorImp(Getter<DataModel.FeatureFlag> flagGetter, Getter<DataModel.Segment> segmentGetter) {
         super(flagGetter, segmentGetter);
     }
 
+    EvaluatorImp(Getter<DataModel.FeatureFlag> flagGetter, Getter<DataModel.Segment> segmentGetter, int regexMatchStepBudget) {
+        super(flagGetter, segmentGetter, regexMatchStepBudget);
+    }
+
+    EvaluatorImp(Getter<DataModel.FeatureFlag> flagGetter, Getter<DataModel.Segment> segmentGetter, int regexMatchStepBudget, AttributeSlots attributeSlots) {
+        super(flagGetter, segmentGetter, regexMatchStepBudget, attributeSlots);
+    }
+
+    EvaluatorImp(Getter<DataModel.FeatureFlag> flagGetter,
+                 Getter<DataModel.Segment> segmentGetter,
+                 int regexMatchStepBudget,
+                 AttributeSlots attributeSlots,
+                 Function<String, UserKeyIndex.Entry> userKeyEntryGetter) {
+        super(flagGetter, segmentGetter, regexMatchStepBudget, attributeSlots, userKeyEntryGetter);
+    }
+
+    // just use for test
+    static EvaluationContext reusableContext() {
+        return reusableContexts.get();
+    }
+
     @Override
     EvalResult evaluate(DataModel.FeatureFlag flag, FBUser user, InsightTypes.Event event) {
         if (user == null || flag == null) {
             throw new IllegalArgumentException("null flag or empty user");
         }
-        return matchUserVariation(flag, user, event);
+        return matchUserVariation(flag, prepare(user), event);
 
     }
 
-    private EvalResult matchUserVariation(DataModel.FeatureFlag flag, FBUser user, InsightTypes.Event event) {
-        //return a value when flag is off or not match prerequisite rule
-        EvalResult er = null;
+    @Override
+    EvalResult evaluate(DataModel.FeatureFlag flag, EvaluationContext context, InsightTypes.Event event) {
+        if (context == null || flag == null) {
+            throw new IllegalArgumentException("null flag or empty user");
+        }
+        return matchUserVariation(flag, context, event);
+    }
+
+    @Override
+    DataModel.Variation evaluateVariation(DataModel.FeatureFlag flag, FBUser user) {
+        if (user == null || flag == null) {
+            throw new IllegalArgumentException("null flag or empty user");
+        }
+        DataModel.Variation constant = flag.getConstantVariation();
+        if (constant != null) {
+            return constant;
+        }
+        EvaluationContext context = reusableContexts.get();
+        if (context.isInUse()) {
+            // never happens unless a variation is evaluated while another one is evaluated in the same thread
+            context = new EvaluationContext(null, null);
+        }
+        context.reset(this, user);
         try {
-            er = matchFeatureFlagDisabledUserVariation(flag);
-            if (er != null) {
-                return er;
+            if (!matchVariation(flag, context, false)) {
+                return null;
             }
-            //return the value of target user
-            er = matchTargetedUserVariation(flag, user);
-            if (er != null) return er;
+            DataModel.Variation variation = context.getMatchedVariation();
+            // guarded, nothing is allocated unless the info level is enabled
+            if (variation != null && logger.isInfoEnabled()) {
+                logger.info("FB JAVA SDK: User {}, Feature Flag {}, Flag Value {}", user.getKey(), flag.getKey(), variation.getValue());
+            }
+            return variation;
+        } finally {
+            context.reset(null, null);
+        }
+    }
 
-            //return the value of matched rule
-            er = matchConditionedUserVariation(flag, user);
-            if (er != null) {
-                return er;
+    private EvalResult matchUserVariation(DataModel.FeatureFlag flag, EvaluationContext context, InsightTypes.Event event) {
+        EvalResult er = flag.getConstantResult();
+        try {
+            if (er == null && matchVariation(flag, context, true)) {
+                er = flag.getResult(context.getMatchedVariation(), context.getMatchedReason(), context.isMatchedSendToExperiment());
             }
-            //get value from default rule
-            er = matchFallThroughUserVariation(flag, user);
             return er;
         } finally {
             if (er != null) {
-                logger.info("FB JAVA SDK: User {}, Feature Flag {}, Flag Value {}", user.getKey(), flag.getKey(), er.getValue());
+                if (logger.isInfoEnabled()) {
+                    logger.info("FB JAVA SDK: User {}, Feature Flag {}, Flag Value {}", context.getUser().getKey(), flag.getKey(), er.getValue());
+                }
                 if (event != null) {
                     event.add(InsightTypes.FlagEventVariation.of(flag.getKey(), er));
                 }
@@ -57,217 +103,109 @@ final class EvaluatorImp extends Evaluator {
         }
     }
 
-    private EvalResult matchFeatureFlagDisabledUserVariation(DataModel.FeatureFlag flag) {
-        // case flag is off
-        if (!flag.isEnabled()) {
-            return EvalResult.of(flag.getVariationType(),
-                    flag.getVariation(flag.getDisabledVariationId()),
-                    REASON_FLAG_OFF,
-                    false,
-                    flag.getKey(), flag.getName());
-        }
-        return null;
-    }
-
-    private EvalResult matchTargetedUserVariation(DataModel.FeatureFlag featureFlag, FBUser user) {
-        return featureFlag.getTargetUsers().stream()
-                .filter(target -> target.isTargeted(user.getKey()))
-                .findFirst()
-                .map(target -> EvalResult.of(featureFlag.getVariationType(),
-                        featureFlag.getVariation(target.getVariationId()),
-                        REASON_TARGET_MATCH,
-                        featureFlag.exptIncludeAllTargets(),
-                        featureFlag.getKey(),
-                        featureFlag.getName()))
-                .orElse(null);
-    }
-
-    private EvalResult matchConditionedUserVariation(DataModel.FeatureFlag featureFlag, FBUser user) {
-        DataModel.TargetRule targetRule = featureFlag.getRules().stream().filter(rule -> ifUserMatchRule(user, rule.getConditions())).findFirst().orElse(null);
-        // optional flatmap can't infer inner type of collection
-        return targetRule == null ? null : getRollOutVariationOption(featureFlag,
-                targetRule.getVariations(),
-                user,
-                REASON_RULE_MATCH,
-                targetRule.includedInExpt(),
-                targetRule.getDispatchKey());
-    }
-
-    private boolean ifUserMatchRule(FBUser user, List<DataModel.Condition> conditions) {
-        return conditions.stream().allMatch(condition -> ifUserMatchClause(user, condition));
+    /**
+     * runs the evaluation stages, the variation, the reason and whether to send to experiment are kept in the context
+     *
+     * @param withExperiment false if whether to send to experiment is not needed
+     * @return true if a stage gives a variation
+     */
+    private boolean matchVariation(DataModel.FeatureFlag flag, EvaluationContext context, boolean withExperiment) {
+        //return a value when flag is off or not match prerequisite rule
+        return matchFeatureFlagDisabledUserVariation(flag, context)
+                //return the value of target user
+                || matchTargetedUserVariation(flag, context)
+                //return the value of matched rule
+                || matchConditionedUserVariation(flag, context, withExperiment)
+                //get value from default rule
+                || matchFallThroughUserVariation(flag, context, withExperiment);
     }
 
-    private boolean ifUserMatchClause(FBUser user, DataModel.Condition condition) {
-        String op = condition.getOp();
-        // segment hasn't any operation
-        op = StringUtils.isBlank(op) ? condition.getProperty() : op;
-        if (op.contains(THAN_CLAUSE)) {
-            return thanClause(user, condition);
-        } else if (op.equals(EQ_CLAUSE)) {
-            return equalsClause(user, condition);
-        } else if (op.equals(NEQ_CLAUSE)) {
-            return !equalsClause(user, condition);
-        } else if (op.equals(CONTAINS_CLAUSE)) {
-            return containsClause(user, condition);
-        } else if (op.equals(NOT_CONTAIN_CLAUSE)) {
-            return !containsClause(user, condition);
-        } else if (op.equals(IS_ONE_OF_CLAUSE)) {
-            return oneOfClause(user, condition);
-        } else if (op.equals(NOT_ONE_OF_CLAUSE)) {
-            return !oneOfClause(user, condition);
-        } else if (op.equals(STARTS_WITH_CLAUSE)) {
-            return startsWithClause(user, condition);
-        } else if (op.equals(ENDS_WITH_CLAUSE)) {
-            return endsWithClause(user, condition);
-        } else if (op.equals(IS_TRUE_CLAUSE)) {
-            return trueClause(user, condition);
-        } else if (op.equals(IS_FALSE_CLAUSE)) {
-            return falseClause(user, condition);
-        } else if (op.equals(MATCH_REGEX_CLAUSE)) {
-            return matchRegExClause(user, condition);
-        } else if (op.equals(NOT_MATCH_REGEX_CLAUSE)) {
-            return !matchRegExClause(user, condition);
-        } else if (op.equals(IS_IN_SEGMENT_CLAUSE)) {
-            return inSegmentClause(user, condition);
-        } else if (op.equals(NOT_IN_SEGMENT_CLAUSE)) {
-            return !inSegmentClause(user, condition);
+    private boolean matchFeatureFlagDisabledUserVariation(DataModel.FeatureFlag flag, EvaluationContext context) {
+        // case flag is off
+        if (!flag.isEnabled()) {
+            context.match(flag.getVariation(flag.getDisabledVariationId()), REASON_FLAG_OFF, false);
+            return true;
         }
         return false;
     }
 
-    private boolean inSegmentClause(FBUser user, DataModel.Condition condition) {
-        String pv = user.getKey();
-        try {
-            List<String> segments = JsonHelper.deserialize(condition.getValue(), new TypeToken<List<String>>() {
-            }.getType());
-            return segments.stream().map(segmentGetter::get).anyMatch(segment -> {
-                if (segment == null) {
-                    return false;
-                }
-                Boolean userInSegment = segment.isMatchUser(pv);
-                if (userInSegment == null) {
-                    return segment
-                            .getRules()
-                            .stream()
-                            .anyMatch(rule -> ifUserMatchRule(user, rule.getConditions()));
-                }
-                return userInSegment;
-            });
-        } catch (JsonParseException e) {
+    private boolean matchTargetedUserVariation(DataModel.FeatureFlag featureFlag, EvaluationContext context) {
+        String variationId = context.getTargetedVariationId(featureFlag);
+        if (variationId == null) {
             return false;
         }
+        context.match(featureFlag.getVariation(variationId), REASON_TARGET_MATCH, featureFlag.exptIncludeAllTargets());
+        return true;
     }
 
-    private boolean trueClause(FBUser user, DataModel.Condition condition) {
-        String pv = user.getProperty(condition.getProperty());
-        return pv != null && pv.equalsIgnoreCase("true");
-    }
-
-    private boolean falseClause(FBUser user, DataModel.Condition condition) {
-        String pv = user.getProperty(condition.getProperty());
-        return pv != null && pv.equalsIgnoreCase("false");
-    }
-
-    private boolean matchRegExClause(FBUser user, DataModel.Condition condition) {
-        String pv = user.getProperty(condition.getProperty());
-        String condValue = condition.getValue();
-        return pv != null && condValue != null && Pattern.compile(condValue).matcher(pv).matches();
-    }
-
-    private boolean endsWithClause(FBUser user, DataModel.Condition condition) {
-        String pv = user.getProperty(condition.getProperty());
-        String condValue = condition.getValue();
-        return pv != null && pv.endsWith(condValue);
-    }
-
-    private boolean startsWithClause(FBUser user, DataModel.Condition condition) {
-        String pv = user.getProperty(condition.getProperty());
-        String condValue = condition.getValue();
-        return pv != null && pv.startsWith(condValue);
-    }
-
-    private boolean thanClause(FBUser user, DataModel.Condition condition) {
-        String pv = user.getProperty(condition.getProperty());
-        String condValue = condition.getValue();
-        if (!StringUtils.isNumeric(pv) || !StringUtils.isNumeric(condValue)) {
+    private boolean matchConditionedUserVariation(DataModel.FeatureFlag featureFlag, EvaluationContext context, boolean withExperiment) {
+        DataModel.TargetRule rule = firstMatchedRule(featureFlag, context);
+        if (rule == null) {
             return false;
         }
-        double pvNumber = new BigDecimal(pv).setScale(5, RoundingMode.HALF_UP).doubleValue();
-        double cvNumber = new BigDecimal(condValue).setScale(5, RoundingMode.HALF_UP).doubleValue();
-        switch (condition.getOp()) {
-            case GE_CLAUSE:
-                return pvNumber >= cvNumber;
-            case GT_CLAUSE:
-                return pvNumber > cvNumber;
-            case LE_CLAUSE:
-                return pvNumber <= cvNumber;
-            case LT_CLAUSE:
-                return pvNumber < cvNumber;
-            default:
-                return false;
-        }
-    }
-
-    private boolean equalsClause(FBUser user, DataModel.Condition condition) {
-        String pv = user.getProperty(condition.getProperty());
-        String condValue = condition.getValue();
-        return condValue != null && condValue.equals(pv);
-    }
-
-    private boolean containsClause(FBUser user, DataModel.Condition condition) {
-        String pv = user.getProperty(condition.getProperty());
-        String condValue = condition.getValue();
-        return pv != null && pv.contains(condValue);
+        return getRollOutVariationOption(featureFlag,
+                rule.getVariations(),
+                context,
+                REASON_RULE_MATCH,
+                rule.includedInExpt(),
+                rule.getDispatchAttribute(),
+                withExperiment);
     }
 
-    private boolean oneOfClause(FBUser user, DataModel.Condition condition) {
-        String pv = user.getProperty(condition.getProperty());
-        try {
-            List<String> clauseValues = JsonHelper.deserialize(condition.getValue(), new TypeToken<List<String>>() {
-            }.getType());
-            return pv != null && clauseValues.contains(pv);
-        } catch (JsonParseException e) {
-            return false;
+    private DataModel.TargetRule firstMatchedRule(DataModel.FeatureFlag featureFlag, EvaluationContext context) {
+        RuleIndex ruleIndex = featureFlag.getRuleIndex();
+        if (ruleIndex != null) {
+            return ruleIndex.firstMatch(context);
+        }
+        List<DataModel.TargetRule> rules = featureFlag.getRules();
+        for (int i = 0; i < rules.size(); i++) {
+            DataModel.TargetRule rule = rules.get(i);
+            if (Clauses.matchAll(rule.getClauses(), context)) {
+                return rule;
+            }
         }
+        return null;
     }
 
-    private EvalResult matchFallThroughUserVariation(DataModel.FeatureFlag featureFlag, FBUser user) {
+    private boolean matchFallThroughUserVariation(DataModel.FeatureFlag featureFlag, EvaluationContext context, boolean withExperiment) {
         DataModel.Fallthrough fallthrough = featureFlag.getFallthrough();
         return getRollOutVariationOption(
                 featureFlag,
                 fallthrough.getVariations(),
-                user,
+                context,
                 REASON_FALLTHROUGH,
                 fallthrough.includedInExpt(),
-                fallthrough.getDispatchKey());
-    }
-
-    private EvalResult getRollOutVariationOption(DataModel.FeatureFlag featureFlag,
-                                                 Collection<DataModel.RolloutVariation> rollouts,
-                                                 FBUser user,
-                                                 String reason,
-                                                 Boolean ruleIncludedInExperiment,
-                                                 String dispatchKey) {
-        dispatchKey = StringUtils.isEmpty(dispatchKey) ? "keyid" : dispatchKey;
-        String userAttr = user.getProperty(dispatchKey);
+                fallthrough.getDispatchAttribute(),
+                withExperiment);
+    }
+
+    private boolean getRollOutVariationOption(DataModel.FeatureFlag featureFlag,
+                                              List<DataModel.RolloutVariation> rollouts,
+                                              EvaluationContext context,
+                                              String reason,
+                                              boolean ruleIncludedInExperiment,
+                                              AttributeSlots.Attribute dispatchAttribute,
+                                              boolean withExperiment) {
+        String userAttr = context.getProperty(dispatchAttribute);
         userAttr = userAttr == null ? "" : userAttr;
-        String dispatchKeyValue = String.join("", featureFlag.getKey(), userAttr);
-        return rollouts.stream()
-                .filter(rollout -> VariationSplittingAlgorithm.ifKeyBelongsPercentage(dispatchKeyValue, rollout.getRollout()))
-                .findFirst()
-                .map(rollout -> EvalResult.of(featureFlag.getVariationType(),
-                        featureFlag.getVariation(rollout.getId()),
+        String flagKey = featureFlag.getKey();
+        for (int i = 0; i < rollouts.size(); i++) {
+            DataModel.RolloutVariation rollout = rollouts.get(i);
+            if (VariationSplittingAlgorithm.ifKeyBelongsPercentage(null, flagKey, userAttr, rollout.getRollout())) {
+                context.match(featureFlag.getVariation(rollout.getId()),
                         reason,
-                        isSendToExperiment(dispatchKeyValue, rollout, featureFlag.exptIncludeAllTargets(), ruleIncludedInExperiment),
-                        featureFlag.getKey(),
-                        featureFlag.getName()))
-                .orElse(null);
+                        withExperiment && isSendToExperiment(flagKey, userAttr, rollout, featureFlag.exptIncludeAllTargets(), ruleIncludedInExperiment));
+                return true;
+            }
+        }
+        return false;
     }
 
-    private boolean isSendToExperiment(String dispatchKeyValue,
+    private boolean isSendToExperiment(String flagKey,
+                                       String userAttr,
                                        DataModel.RolloutVariation rollout,
-                                       Boolean exptIncludeAllRules,
-                                       Boolean ruleIncludedInExperiment) {
+                                       boolean exptIncludeAllRules,
+                                       boolean ruleIncludedInExperiment) {
         if (exptIncludeAllRules) {
             return true;
         }
@@ -281,8 +219,7 @@ final class EvaluatorImp extends Evaluator {
             if (upperBound > 1D) {
                 upperBound = 1D;
             }
-            String newDispatchKeyValue = String.join("", EXPT_KEY_PREFIX, dispatchKeyValue);
-            return VariationSplittingAlgorithm.ifKeyBelongsPercentage(newDispatchKeyValue, new double[]{0D, upperBound});
+            return VariationSplittingAlgorithm.ifKeyBelongsPercentage(EXPT_KEY_PREFIX, flagKey, userAttr, 0D, upperBound);
         }
         return false;
     }
@@ -5,16 +5,18 @@ import co.featbit.commons.model.AllFlagStates;
 import co.featbit.commons.model.EvalDetail;
 import co.featbit.commons.model.FBUser;
 import co.featbit.server.exterior.*;
-import com.google.common.collect.ImmutableMap;
-import org.apache.commons.lang3.BooleanUtils;
+import co.featbit.server.integrations.FBUserContextHolder;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
 import java.io.IOException;
 import java.time.Duration;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static co.featbit.server.Evaluator.*;
 import static com.google.common.base.Preconditions.checkArgument;
@@ -27,8 +29,16 @@ public final class FBClientImp implements FBClient {
 
     private final static Logger logger = Loggers.CLIENT;
     private final boolean offline;
+    private final boolean cacheJsonVariations;
+    private final int regexMatchStepBudget;
+    // the user attributes referenced by the flags of this client
+    private final AttributeSlots attributeSlots = new AttributeSlots();
+    // no event is sent, the typed variations are evaluated without any allocation
+    private final boolean insightDisabled;
     private final DataStorage storage;
     private final Evaluator evaluator;
+    // null if disabled
+    private final EvaluationCache evaluationCache;
     private final DataSynchronizer dataSynchronizer;
     private final Status.DataUpdateStatusProvider dataUpdateStatusProvider;
     private final Status.DataUpdater dataUpdater;
@@ -36,6 +46,11 @@ public final class FBClientImp implements FBClient {
     private final ThreadPoolExecutor sharedExecutorService;
     private final Consumer<InsightTypes.Event> eventHandler;
     private final FlagTracker flagTracker;
+    private final boolean flagHandlesFollowUpdates;
+    // null if all the flags are evaluated in the calling thread
+    private final Executor allFlagsExecutor;
+    private final int allFlagsPerTask;
+    private final Map<String, FlagHandle> flagHandles = new ConcurrentHashMap<>();
 
     /**
      * Creates a new client to connect to feature flag center with a specified configuration.
@@ -87,6 +102,10 @@ public final class FBClientImp implements FBClient {
     public FBClientImp(String envSecret, FBConfig config) {
         checkNotNull(config, "FBConfig Should not be null");
         this.offline = config.isOffline();
+        this.cacheJsonVariations = config.isCacheJsonVariations();
+        this.regexMatchStepBudget = config.getRegexMatchStepBudget();
+        this.allFlagsExecutor = config.getAllFlagsExecutor();
+        this.allFlagsPerTask = config.getAllFlagsPerTask();
         if (!this.offline) {
             checkArgument(Utils.isValidEnvSecret(envSecret), "envSecret is invalid");
             checkArgument(Utils.isUrl(config.getStreamingURL()) || Utils.isUrl(config.getEventURL()), "streaming or event url is invalid");
@@ -96,6 +115,7 @@ public final class FBClientImp implements FBClient {
         //Insight processor
         this.insightProcessor = config.getInsightProcessorFactory().createInsightProcessor(context);
         this.eventHandler = this.insightProcessor::send;
+        this.insightDisabled = this.insightProcessor instanceof FactoryImp.NullInsightProcessor;
         //data storage
         this.storage = config.getDataStorageFactory().createDataStorage(context);
         //evaluator
@@ -107,7 +127,10 @@ public final class FBClientImp implements FBClient {
             DataStorageTypes.Item item = this.storage.get(DataStorageTypes.SEGMENTS, key);
             return item == null ? null : (DataModel.Segment) item;
         };
-        this.evaluator = new EvaluatorImp(flagGetter, segmentGetter);
+        this.evaluator = new EvaluatorImp(flagGetter, segmentGetter, this.regexMatchStepBudget, this.attributeSlots);
+        this.evaluationCache = config.getEvaluationCacheSize() > 0
+                ? new EvaluationCache(this.evaluator, this.storage::getVersion, config.getEvaluationCacheSize(), config.getEvaluationCacheTtl())
+                : null;
 
         this.sharedExecutorService = new ScheduledThreadPoolExecutor(1, Utils.createThreadFactory("featbit-shared-worker-%d", true));
         EventBroadcasterImpl<Status.StateListener, Status.State> dataUpdateStateNotifier = EventBroadcasterImpl.forDataUpdateStates(this.sharedExecutorService, logger);
@@ -116,6 +139,9 @@ public final class FBClientImp implements FBClient {
         //data updator
         Status.DataUpdaterImpl dataUpdatorImpl = new Status.DataUpdaterImpl(this.storage, dataUpdateStateNotifier, flagChangeEventNotifier);
         this.dataUpdater = dataUpdatorImpl;
+        // the flag handles are refreshed by the updates of the data synchronizer, unless the storage is synchronized externally
+        this.flagHandlesFollowUpdates = this.offline || !(config.getDataSynchronizerFactory() instanceof FactoryImp.NullDataSynchronizerFactory);
+        dataUpdatorImpl.setFlagUpdateListener(this::refreshFlagHandles);
         //data processor
         this.dataSynchronizer = config.getDataSynchronizerFactory().createDataSynchronizer(context, dataUpdatorImpl);
         //data update status provider
@@ -154,6 +180,10 @@ public final class FBClientImp implements FBClient {
 
     @Override
     public String variation(String featureFlagKey, FBUser user, String defaultValue) {
+        DataModel.Variation variation = evaluateVariation(featureFlagKey, user, null);
+        if (variation != null) {
+            return variation.getValue();
+        }
         Evaluator.EvalResult res = evaluateInternal(featureFlagKey, user, defaultValue, null);
         return res.getValue();
     }
@@ -161,68 +191,131 @@ public final class FBClientImp implements FBClient {
     @Override
     public EvalDetail<String> variationDetail(String featureFlagKey, FBUser user, String defaultValue) {
         Evaluator.EvalResult res = evaluateInternal(featureFlagKey, user, defaultValue, null);
-        return res.toEvalDetail(res.getValue());
+        return res.toStringDetail();
     }
 
     @Override
     public boolean boolVariation(String featureFlagKey, FBUser user, Boolean defaultValue) {
+        DataModel.Variation variation = evaluateVariation(featureFlagKey, user, Boolean.class);
+        if (variation != null) {
+            return variation.getBooleanValue();
+        }
         Evaluator.EvalResult res = evaluateInternal(featureFlagKey, user, defaultValue, Boolean.class);
-        return BooleanUtils.toBoolean(res.getValue());
+        return res.getBooleanValue();
     }
 
     @Override
     public EvalDetail<Boolean> boolVariationDetail(String featureFlagKey, FBUser user, Boolean defaultValue) {
         Evaluator.EvalResult res = evaluateInternal(featureFlagKey, user, defaultValue, Boolean.class);
-        return res.toEvalDetail(BooleanUtils.toBoolean(res.getValue()));
+        return res.toBooleanDetail();
     }
 
     public double doubleVariation(String featureFlagKey, FBUser user, Double defaultValue) {
+        DataModel.Variation variation = evaluateVariation(featureFlagKey, user, Double.class);
+        if (variation != null && variation.isParsedNumber()) {
+            return variation.getDoubleValue();
+        }
         Evaluator.EvalResult res = evaluateInternal(featureFlagKey, user, defaultValue, Double.class);
-        return Double.parseDouble(res.getValue());
+        return res.getDoubleValue();
     }
 
 
     @Override
     public EvalDetail<Double> doubleVariationDetail(String featureFlagKey, FBUser user, Double defaultValue) {
         Evaluator.EvalResult res = evaluateInternal(featureFlagKey, user, defaultValue, Double.class);
-        return res.toEvalDetail(Double.parseDouble(res.getValue()));
+        return res.toDoubleDetail();
     }
 
     public int intVariation(String featureFlagKey, FBUser user, Integer defaultValue) {
+        DataModel.Variation variation = evaluateVariation(featureFlagKey, user, Integer.class);
+        if (variation != null && variation.isParsedNumber()) {
+            return (int) variation.getDoubleValue();
+        }
         Evaluator.EvalResult res = evaluateInternal(featureFlagKey, user, defaultValue, Integer.class);
-        return Double.valueOf(res.getValue()).intValue();
+        return (int) res.getDoubleValue();
     }
 
     @Override
     public EvalDetail<Integer> intVariationDetail(String featureFlagKey, FBUser user, Integer defaultValue) {
         Evaluator.EvalResult res = evaluateInternal(featureFlagKey, user, defaultValue, Integer.class);
-        return res.toEvalDetail(Double.valueOf(res.getValue()).intValue());
+        return res.toIntegerDetail();
     }
 
     public long longVariation(String featureFlagKey, FBUser user, Long defaultValue) {
+        DataModel.Variation variation = evaluateVariation(featureFlagKey, user, Long.class);
+        if (variation != null && variation.isParsedNumber()) {
+            return (long) variation.getDoubleValue();
+        }
         Evaluator.EvalResult res = evaluateInternal(featureFlagKey, user, defaultValue, Long.class);
-        return Double.valueOf(res.getValue()).longValue();
+        return (long) res.getDoubleValue();
     }
 
     @Override
     public EvalDetail<Long> longVariationDetail(String featureFlagKey, FBUser user, Long defaultValue) {
         Evaluator.EvalResult res = evaluateInternal(featureFlagKey, user, defaultValue, Long.class);
-        return res.toEvalDetail(Double.valueOf(res.getValue()).longValue());
+        return res.toLongDetail();
     }
 
     @Override
     public <T> T jsonVariation(String featureFlagKey, FBUser user, Class<T> clazz, T defaultValue) {
         Evaluator.EvalResult res = evaluateInternal(featureFlagKey, user, DEFAULT_JSON_VALUE, clazz);
-        return Utils.parseJsonObject(res.getValue(), defaultValue, clazz, DEFAULT_JSON_VALUE.equals(res.getValue()));
+        return res.getJsonObject(defaultValue, clazz, cacheJsonVariations);
     }
 
     @Override
     public <T> EvalDetail<T> jsonVariationDetail(String featureFlagKey, FBUser user, Class<T> clazz, T defaultValue) {
         Evaluator.EvalResult res = evaluateInternal(featureFlagKey, user, DEFAULT_JSON_VALUE, clazz);
-        T value = Utils.parseJsonObject(res.getValue(), defaultValue, clazz, DEFAULT_JSON_VALUE.equals(res.getValue()));
+        T value = res.getJsonObject(defaultValue, clazz, cacheJsonVariations);
         return res.toEvalDetail(value);
     }
 
+    /**
+     * the fast path of the typed variations when no event is sent: the flag is evaluated straight to its variation,
+     * without any allocation. Returns null if events are sent or if the evaluation doesn't give a variation
+     * of the required type, the caller then runs {@link #evaluateInternal}, which handles and logs the failure.
+     */
+    private DataModel.Variation evaluateVariation(String featureFlagKey, FBUser user, Class<?> requiredType) {
+        if (!insightDisabled || evaluationCache != null || FBUserContextHolder.getCurrentScope() != null) {
+            return null;
+        }
+        try {
+            if (!isInitialized() || StringUtils.isBlank(featureFlagKey)) {
+                return null;
+            }
+            return evaluateVariation(getFlagInternal(featureFlagKey), user, requiredType);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    /**
+     * the fast path of the typed variations of a flag handle, see {@link #evaluateVariation(String, FBUser, Class)}
+     */
+    DataModel.Variation evaluateVariation(FlagHandle handle, FBUser user, Class<?> requiredType) {
+        if (!insightDisabled || evaluationCache != null || FBUserContextHolder.getCurrentScope() != null) {
+            return null;
+        }
+        try {
+            if (!isInitialized()) {
+                return null;
+            }
+            return evaluateVariation(handle.getFlag(), user, requiredType);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private DataModel.Variation evaluateVariation(DataModel.FeatureFlag flag, FBUser user, Class<?> requiredType) {
+        if (flag == null || user == null || StringUtils.isBlank(user.getKey())) {
+            return null;
+        }
+        DataModel.Variation variation = evaluator.evaluateVariation(flag, user);
+        if (variation == null || !variation.isPrepared() || (requiredType != null && !variation.isCompatible(requiredType))) {
+            return null;
+        }
+        return variation;
+    }
+
     private Evaluator.EvalResult evaluateInternal(String featureFlagKey, FBUser user, Object defaultValue, Class<?> requiredType) {
         String dv = defaultValue == null ? null : defaultValue.toString();
         try {
@@ -234,32 +327,77 @@ public final class FBClientImp implements FBClient {
                 Loggers.EVALUATION.warn("FB JAVA SDK: null feature flag key; returning default value");
                 return Evaluator.EvalResult.error(dv, REASON_FLAG_NOT_FOUND, featureFlagKey, FLAG_NAME_UNKNOWN);
             }
-            DataModel.FeatureFlag flag = getFlagInternal(featureFlagKey);
-            if (flag == null) {
-                Loggers.EVALUATION.warn("FB JAVA SDK: unknown feature flag {}; returning default value", featureFlagKey);
-                return Evaluator.EvalResult.error(dv, REASON_FLAG_NOT_FOUND, featureFlagKey, FLAG_NAME_UNKNOWN);
-            }
-            if (user == null || StringUtils.isBlank(user.getKey())) {
-                Loggers.EVALUATION.warn("FB JAVA SDK: null user for feature flag {}, returning default value", featureFlagKey);
-                return Evaluator.EvalResult.error(dv, REASON_USER_NOT_SPECIFIED, featureFlagKey, FLAG_NAME_UNKNOWN);
+            EvaluationScope scope = currentScope(user);
+            DataModel.FeatureFlag flag = scope == null ? getFlagInternal(featureFlagKey) : scope.getFlag(featureFlagKey);
+            return evaluateFlag(scope, flag, featureFlagKey, user, dv, requiredType);
+        } catch (Exception ex) {
+            logger.error("FB JAVA SDK: unexpected error in evaluation", ex);
+            return Evaluator.EvalResult.error(dv, REASON_ERROR, featureFlagKey, FLAG_NAME_UNKNOWN);
+        }
+
+    }
+
+    /**
+     * evaluates the flag of a handle, the flag key is neither checked nor looked up
+     */
+    Evaluator.EvalResult evaluate(FlagHandle handle, FBUser user, Object defaultValue, Class<?> requiredType) {
+        String dv = defaultValue == null ? null : defaultValue.toString();
+        String featureFlagKey = handle.getKey();
+        try {
+            if (!isInitialized()) {
+                Loggers.EVALUATION.warn("FB JAVA SDK: evaluation is called before Java SDK client is initialized for feature flag, well using the default value");
+                return Evaluator.EvalResult.error(dv, REASON_CLIENT_NOT_READY, featureFlagKey, FLAG_NAME_UNKNOWN);
             }
+            EvaluationScope scope = currentScope(user);
+            DataModel.FeatureFlag flag = scope == null ? handle.getFlag() : scope.getFlag(featureFlagKey);
+            return evaluateFlag(scope, flag, featureFlagKey, user, dv, requiredType);
+        } catch (Exception ex) {
+            logger.error("FB JAVA SDK: unexpected error in evaluation", ex);
+            return Evaluator.EvalResult.error(dv, REASON_ERROR, featureFlagKey, FLAG_NAME_UNKNOWN);
+        }
+    }
+
+    <T> T evaluateJson(FlagHandle handle, FBUser user, Class<T> clazz, T defaultValue) {
+        Evaluator.EvalResult res = evaluate(handle, user, DEFAULT_JSON_VALUE, clazz);
+        return res.getJsonObject(defaultValue, clazz, cacheJsonVariations);
+    }
 
-            InsightTypes.Event event = InsightTypes.FlagEvent.of(user);
-            Evaluator.EvalResult res = evaluator.evaluate(flag, user, event);
-            if (requiredType != null && !Utils.checkType(flag.getVariationType(), requiredType, res.getValue())) {
+    private Evaluator.EvalResult evaluateFlag(EvaluationScope scope, DataModel.FeatureFlag flag, String featureFlagKey, FBUser user, String dv, Class<?> requiredType) {
+        if (flag == null) {
+            Loggers.EVALUATION.warn("FB JAVA SDK: unknown feature flag {}; returning default value", featureFlagKey);
+            return Evaluator.EvalResult.error(dv, REASON_FLAG_NOT_FOUND, featureFlagKey, FLAG_NAME_UNKNOWN);
+        }
+        if (user == null || StringUtils.isBlank(user.getKey())) {
+            Loggers.EVALUATION.warn("FB JAVA SDK: null user for feature flag {}, returning default value", featureFlagKey);
+            return Evaluator.EvalResult.error(dv, REASON_USER_NOT_SPECIFIED, featureFlagKey, FLAG_NAME_UNKNOWN);
+        }
+
+        if (scope != null) {
+            Evaluator.EvalResult res = scope.evaluate(flag);
+            if (requiredType != null && !res.isCompatible(requiredType)) {
                 Loggers.EVALUATION.warn("FB JAVA SDK: evaluation result {} didn't matched expected type {}", res.getValue(), requiredType);
                 return Evaluator.EvalResult.error(dv, REASON_WRONG_TYPE, res.getKeyName(), res.getName());
             }
-            eventHandler.accept(event);
+            scope.track(flag.getKey(), res);
             return res;
-        } catch (Exception ex) {
-            logger.error("FB JAVA SDK: unexpected error in evaluation", ex);
-            return Evaluator.EvalResult.error(dv, REASON_ERROR, featureFlagKey, FLAG_NAME_UNKNOWN);
         }
+        InsightTypes.Event event = InsightTypes.FlagEvent.of(user);
+        Evaluator.EvalResult res = evaluationCache == null ? evaluator.evaluate(flag, user, event) : evaluationCache.evaluate(flag, user, event);
+        if (requiredType != null && !res.isCompatible(requiredType)) {
+            Loggers.EVALUATION.warn("FB JAVA SDK: evaluation result {} didn't matched expected type {}", res.getValue(), requiredType);
+            return Evaluator.EvalResult.error(dv, REASON_WRONG_TYPE, res.getKeyName(), res.getName());
+        }
+        eventHandler.accept(event);
+        return res;
+    }
 
+    // the evaluation scope of this client bound to the current thread for the user, null if none
+    private EvaluationScope currentScope(FBUser user) {
+        EvaluationScope scope = FBUserContextHolder.getCurrentScope();
+        return scope != null && user != null && scope.isScopeOf(this, user) ? scope : null;
     }
 
-    private DataModel.FeatureFlag getFlagInternal(String featureFlagKey) {
+    DataModel.FeatureFlag getFlagInternal(String featureFlagKey) {
         DataStorageTypes.Item item = storage.get(DataStorageTypes.FEATURES, featureFlagKey);
         return item == null ? null : (DataModel.FeatureFlag) item;
     }
@@ -313,7 +451,7 @@ public final class FBClientImp implements FBClient {
 
     @Override
     public AllFlagStates getAllLatestFlagsVariations(FBUser user) {
-        ImmutableMap.Builder<Evaluator.EvalResult, InsightTypes.FlagEvent> builder = ImmutableMap.builder();
+        List<Evaluator.EvalResult> results = Collections.emptyList();
         boolean success = true;
         String errorString = "";
         try {
@@ -326,20 +464,224 @@ public final class FBClientImp implements FBClient {
                 success = false;
                 errorString = REASON_USER_NOT_SPECIFIED;
             } else {
-                Map<String, DataStorageTypes.Item> allFlags = this.storage.getAll(DataStorageTypes.FEATURES);
-                for (DataStorageTypes.Item item : allFlags.values()) {
+                results = evaluateAllFlags(DataSnapshot.of(storage), user);
+            }
+        } catch (Exception ex) {
+            logger.error("FB JAVA SDK: unexpected error in evaluation", ex);
+            success = false;
+            errorString = REASON_ERROR;
+            results = Collections.emptyList();
+        }
+        return new Implicits.ComplexAllFlagStates(success, errorString, results, user, eventHandler);
+    }
+
+    @Override
+    public AllFlagStates getAllLatestFlagsVariationsLazily(FBUser user) {
+        String errorString;
+        try {
+            if (!isInitialized()) {
+                Loggers.EVALUATION.warn("FB JAVA SDK: Evaluation is called before Java SDK client is initialized for feature flag");
+                errorString = REASON_CLIENT_NOT_READY;
+            } else if (user == null || StringUtils.isBlank(user.getKey())) {
+                Loggers.EVALUATION.warn("FB JAVA SDK: null user or feature flag");
+                errorString = REASON_USER_NOT_SPECIFIED;
+            } else {
+                return new Implicits.LazyAllFlagStates(DataSnapshot.of(storage), user, regexMatchStepBudget, attributeSlots, eventHandler);
+            }
+        } catch (Exception ex) {
+            logger.error("FB JAVA SDK: unexpected error in evaluation", ex);
+            errorString = REASON_ERROR;
+        }
+        return new Implicits.ComplexAllFlagStates(false, errorString, Collections.emptyList(), null, null);
+    }
+
+    /**
+     * evaluates all the flags of a snapshot for a user, in the order of the snapshot.
+     * the flags are split in tasks run by the executor of all the flags if any, a task evaluates its flags with its own user context.
+     */
+    private List<Evaluator.EvalResult> evaluateAllFlags(DataSnapshot snapshot, FBUser user) {
+        List<DataModel.FeatureFlag> flags = new ArrayList<>();
+        snapshot.getFlags().forEach(flags::add);
+        Evaluator snapshotEvaluator = snapshot.newEvaluator(regexMatchStepBudget, attributeSlots);
+        if (allFlagsExecutor == null || flags.size() <= allFlagsPerTask) {
+            return evaluateFlags(snapshotEvaluator, flags, user);
+        }
+        List<List<DataModel.FeatureFlag>> parts = new ArrayList<>();
+        List<CompletableFuture<List<Evaluator.EvalResult>>> tasks = new ArrayList<>();
+        for (int from = allFlagsPerTask; from < flags.size(); from += allFlagsPerTask) {
+            List<DataModel.FeatureFlag> part = flags.subList(from, Math.min(from + allFlagsPerTask, flags.size()));
+            CompletableFuture<List<Evaluator.EvalResult>> task;
+            try {
+                task = CompletableFuture.supplyAsync(() -> evaluateFlags(snapshotEvaluator, part, user), allFlagsExecutor);
+            } catch (RejectedExecutionException ex) {
+                // the executor is saturated or shut down, the part is evaluated by the calling thread
+                task = null;
+            }
+            parts.add(part);
+            tasks.add(task);
+        }
+        // the first part is evaluated by the calling thread
+        List<Evaluator.EvalResult> results = new ArrayList<>(flags.size());
+        results.addAll(evaluateFlags(snapshotEvaluator, flags.subList(0, allFlagsPerTask), user));
+        for (int i = 0; i < tasks.size(); i++) {
+            CompletableFuture<List<Evaluator.EvalResult>> task = tasks.get(i);
+            results.addAll(task == null ? evaluateFlags(snapshotEvaluator, parts.get(i), user) : task.join());
+        }
+        return results;
+    }
+
+    private List<Evaluator.EvalResult> evaluateFlags(Evaluator evaluator, List<DataModel.FeatureFlag> flags, FBUser user) {
+        EvaluationContext context = evaluator.prepare(user);
+        List<Evaluator.EvalResult> results = new ArrayList<>(flags.size());
+        for (DataModel.FeatureFlag flag : flags) {
+            results.add(evaluator.evaluate(flag, context, null));
+        }
+        return results;
+    }
+
+    @Override
+    public AllFlagStates evaluate(FBUser user, Collection<String> featureFlagKeys) {
+        List<Evaluator.EvalResult> results = new ArrayList<>();
+        boolean success = true;
+        String errorString = "";
+        try {
+            if (!isInitialized()) {
+                Loggers.EVALUATION.warn("FB JAVA SDK: Evaluation is called before Java SDK client is initialized for feature flag");
+                success = false;
+                errorString = REASON_CLIENT_NOT_READY;
+            } else if (user == null || StringUtils.isBlank(user.getKey()) || featureFlagKeys == null) {
+                Loggers.EVALUATION.warn("FB JAVA SDK: null user or feature flags");
+                success = false;
+                errorString = REASON_USER_NOT_SPECIFIED;
+            } else {
+                // a flag key is evaluated once, the unknown flags are not found in the states
+                Set<String> keys = new LinkedHashSet<>(featureFlagKeys);
+                EvaluationScope scope = currentScope(user);
+                if (scope != null) {
+                    for (String key : keys) {
+                        DataModel.FeatureFlag flag = StringUtils.isBlank(key) ? null : scope.getFlag(key);
+                        if (flag != null) {
+                            Evaluator.EvalResult res = scope.evaluate(flag);
+                            scope.track(key, res);
+                            results.add(res);
+                        }
+                    }
+                } else {
+                    // the flags are evaluated against the same version of the data, with the same user context
+                    DataSnapshot snapshot = DataSnapshot.of(storage);
+                    Evaluator snapshotEvaluator = snapshot.newEvaluator(regexMatchStepBudget, attributeSlots);
+                    EvaluationContext context = snapshotEvaluator.prepare(user);
                     InsightTypes.FlagEvent event = InsightTypes.FlagEvent.of(user);
-                    DataModel.FeatureFlag flag = (DataModel.FeatureFlag) item;
-                    Evaluator.EvalResult res = evaluator.evaluate(flag, user, event);
-                    builder.put(res, event);
+                    for (String key : keys) {
+                        DataModel.FeatureFlag flag = StringUtils.isBlank(key) ? null : snapshot.getFlag(key);
+                        if (flag != null) {
+                            results.add(snapshotEvaluator.evaluate(flag, context, event));
+                        }
+                    }
+                    if (event.isSendEvent()) {
+                        eventHandler.accept(event);
+                    }
                 }
             }
         } catch (Exception ex) {
             logger.error("FB JAVA SDK: unexpected error in evaluation", ex);
             success = false;
             errorString = REASON_ERROR;
+            results.clear();
+        }
+        return new Implicits.ComplexAllFlagStates(success, errorString, results, user, null);
+    }
+
+    @Override
+    public BulkEvaluation bulkEvaluate(String featureFlagKey, Stream<FBUser> users, boolean sendEvents) {
+        checkNotNull(users, "users should not be null");
+        return bulkEvaluate(featureFlagKey, sendEvents, evaluate -> users.parallel()
+                .collect(() -> new BulkEvaluation.Accumulator(false),
+                        (acc, user) -> acc.add(-1, evaluate.apply(user)),
+                        BulkEvaluation.Accumulator::merge));
+    }
+
+    @Override
+    public BulkEvaluation bulkEvaluate(String featureFlagKey, List<FBUser> users, boolean sendEvents) {
+        checkNotNull(users, "users should not be null");
+        return bulkEvaluate(featureFlagKey, sendEvents, evaluate -> IntStream.range(0, users.size()).parallel()
+                .collect(() -> new BulkEvaluation.Accumulator(true),
+                        (acc, index) -> acc.add(index, evaluate.apply(users.get(index))),
+                        BulkEvaluation.Accumulator::merge));
+    }
+
+    /**
+     * evaluates a flag for the users given to {@code run} against a snapshot of the data,
+     * {@code run} returns the results of the function evaluating a user to its variation value
+     */
+    private BulkEvaluation bulkEvaluate(String featureFlagKey,
+                                       boolean sendEvents,
+                                       Function<Function<FBUser, String>, BulkEvaluation.Accumulator> run) {
+        if (!isInitialized()) {
+            Loggers.EVALUATION.warn("FB JAVA SDK: evaluation is called before Java SDK client is initialized for feature flag");
+            return BulkEvaluation.error(featureFlagKey, REASON_CLIENT_NOT_READY);
+        }
+        DataSnapshot snapshot = DataSnapshot.of(storage);
+        DataModel.FeatureFlag flag = StringUtils.isBlank(featureFlagKey) ? null : snapshot.getFlag(featureFlagKey);
+        if (flag == null) {
+            Loggers.EVALUATION.warn("FB JAVA SDK: unknown feature flag {}", featureFlagKey);
+            return BulkEvaluation.error(featureFlagKey, REASON_FLAG_NOT_FOUND);
+        }
+        Evaluator snapshotEvaluator = snapshot.newEvaluator(regexMatchStepBudget, attributeSlots);
+        Function<FBUser, String> evaluate = user -> {
+            if (user == null || StringUtils.isBlank(user.getKey())) {
+                return null;
+            }
+            try {
+                if (sendEvents) {
+                    InsightTypes.Event event = InsightTypes.FlagEvent.of(user);
+                    Evaluator.EvalResult res = snapshotEvaluator.evaluate(flag, user, event);
+                    eventHandler.accept(event);
+                    return res.getValue();
+                }
+                // no event, the user is evaluated straight to its variation if possible
+                DataModel.Variation variation = snapshotEvaluator.evaluateVariation(flag, user);
+                return variation != null ? variation.getValue() : snapshotEvaluator.evaluate(flag, user, null).getValue();
+            } catch (Exception ex) {
+                Loggers.EVALUATION.debug("FB JAVA SDK: unexpected error in bulk evaluation of {}", featureFlagKey, ex);
+                return null;
+            }
+        };
+        return run.apply(evaluate).toEvaluation(featureFlagKey, snapshot.getVersion());
+    }
+
+    @Override
+    public EvaluationScope openEvaluationScope(FBUser user, boolean inherit) {
+        checkArgument(user != null && StringUtils.isNotBlank(user.getKey()), "user is invalid");
+        EvaluationScope scope = new EvaluationScope(this, user, DataSnapshot.of(storage), regexMatchStepBudget, attributeSlots, eventHandler);
+        FBUserContextHolder.setCurrentScope(scope, inherit);
+        return scope;
+    }
+
+    @Override
+    public FlagHandle flag(String featureFlagKey) {
+        checkArgument(StringUtils.isNotBlank(featureFlagKey), "feature flag key is invalid");
+        FlagHandle handle = flagHandles.computeIfAbsent(featureFlagKey, key -> new FlagHandle(this, key, flagHandlesFollowUpdates));
+        // refreshed once registered, an update received meanwhile is not missed
+        handle.refresh();
+        return handle;
+    }
+
+    // null key if all the flags were replaced
+    private void refreshFlagHandles(String featureFlagKey) {
+        if (featureFlagKey == null) {
+            flagHandles.values().forEach(FlagHandle::refresh);
+        } else {
+            FlagHandle handle = flagHandles.get(featureFlagKey);
+            if (handle != null) {
+                handle.refresh();
+            }
         }
-        return new Implicits.ComplexAllFlagStates(success, errorString, builder.build(), eventHandler);
+    }
+
+    @Override
+    public EvaluationCache.Stats getEvaluationCacheStats() {
+        return evaluationCache == null ? EvaluationCache.Stats.EMPTY : evaluationCache.getStats();
     }
 
     @Override
@@ -3,6 +3,7 @@ package co.featbit.server;
 import co.featbit.server.exterior.*;
 
 import java.time.Duration;
+import java.util.concurrent.Executor;
 
 /**
  * This class exposes advanced configuration options for the {@link FBClient}
@@ -10,6 +11,7 @@ import java.time.Duration;
  */
 public class FBConfig {
     static final Duration DEFAULT_START_WAIT_TIME = Duration.ofSeconds(15);
+    static final int DEFAULT_ALL_FLAGS_PER_TASK = 128;
 
     private DataStorageFactory dataStorageFactory;
     private DataSynchronizerFactory dataSynchronizerFactory;
@@ -19,6 +21,13 @@ public class FBConfig {
     private boolean offline;
     private Duration startWaitTime;
     private boolean disableEvents;
+    private int regexMatchStepBudget;
+    private int massiveSegmentThreshold;
+    private boolean cacheJsonVariations;
+    private int evaluationCacheSize;
+    private Duration evaluationCacheTtl;
+    private Executor allFlagsExecutor;
+    private int allFlagsPerTask;
 
     private String streamingURL;
 
@@ -64,11 +73,46 @@ public class FBConfig {
         return disableEvents;
     }
 
+    public int getRegexMatchStepBudget() {
+        return regexMatchStepBudget;
+    }
+
+    public int getMassiveSegmentThreshold() {
+        return massiveSegmentThreshold;
+    }
+
+    public boolean isCacheJsonVariations() {
+        return cacheJsonVariations;
+    }
+
+    public int getEvaluationCacheSize() {
+        return evaluationCacheSize;
+    }
+
+    public Duration getEvaluationCacheTtl() {
+        return evaluationCacheTtl;
+    }
+
+    public Executor getAllFlagsExecutor() {
+        return allFlagsExecutor;
+    }
+
+    public int getAllFlagsPerTask() {
+        return allFlagsPerTask;
+    }
+
     public FBConfig(Builder builder) {
         this.offline = builder.offline;
         this.streamingURL = builder.streamingURL;
         this.eventURL = builder.eventURL;
         this.disableEvents = builder.disableEvents;
+        this.regexMatchStepBudget = builder.regexMatchStepBudget;
+        this.massiveSegmentThreshold = builder.massiveSegmentThreshold;
+        this.cacheJsonVariations = builder.cacheJsonVariations;
+        this.evaluationCacheSize = builder.evaluationCacheSize;
+        this.evaluationCacheTtl = builder.evaluationCacheTtl;
+        this.allFlagsExecutor = builder.allFlagsExecutor;
+        this.allFlagsPerTask = builder.allFlagsPerTask > 0 ? builder.allFlagsPerTask : DEFAULT_ALL_FLAGS_PER_TASK;
         this.startWaitTime = builder.startWaitTime == null ? DEFAULT_START_WAIT_TIME : builder.startWaitTime;
         if (builder.offline) {
             Loggers.CLIENT.info("FB JAVA SDK: SDK is in offline mode");
@@ -107,6 +151,13 @@ public class FBConfig {
         private Duration startWaitTime;
         private boolean offline = false;
         private boolean disableEvents = false;
+        private int regexMatchStepBudget = 0;
+        private int massiveSegmentThreshold = 0;
+        private boolean cacheJsonVariations = false;
+        private int evaluationCacheSize = 0;
+        private Duration evaluationCacheTtl;
+        private Executor allFlagsExecutor;
+        private int allFlagsPerTask = 0;
 
 
         private String streamingURL;
@@ -226,6 +277,85 @@ public class FBConfig {
             return this;
         }
 
+        /**
+         * Set the max number of characters of a user property that a MatchRegex/NotMatchRegex condition may read,
+         * backtracking included, before the match is aborted. An aborted match fails closed: the condition is not matched.
+         * This bounds the evaluation time whatever the regex set in the feature flag center.
+         * The default is 0, the regex matching is unbounded.
+         *
+         * @param regexMatchStepBudget the max number of steps, 0 or negative if unbounded
+         * @return the builder
+         */
+        public Builder regexMatchStepBudget(int regexMatchStepBudget) {
+            this.regexMatchStepBudget = regexMatchStepBudget;
+            return this;
+        }
+
+        /**
+         * Set the number of keys from which the included or excluded users of a segment are held in off-heap memory,
+         * as sorted 64-bit hashes behind a bloom filter and the keys encoded in UTF-8, instead of strings in the heap.
+         * This suits segments with millions of users. A key found by its hash is compared to the key of the list,
+         * the hash collisions never match a user. This setting applies to the default data storage of this client.
+         * The default is 0, the massive segment mode is disabled.
+         *
+         * @param massiveSegmentThreshold the min number of keys, 0 or negative if disabled
+         * @return the builder
+         */
+        public Builder massiveSegmentThreshold(int massiveSegmentThreshold) {
+            this.massiveSegmentThreshold = massiveSegmentThreshold;
+            return this;
+        }
+
+        /**
+         * Set whether {@link FBClient#jsonVariation} and {@link FBClient#jsonVariationDetail} cache the deserialized json objects.
+         * A variation is then deserialized once by class and by version of the feature flag, the same instance is returned
+         * to all the callers and all the threads: the returned objects must be treated as immutable, they must not be modified.
+         * The cached objects are dropped when a new version of the feature flag is received.
+         * The default is false, the variation is deserialized in each call.
+         *
+         * @param cacheJsonVariations true if the json objects are cached
+         * @return the builder
+         */
+        public Builder cacheJsonVariations(boolean cacheJsonVariations) {
+            this.cacheJsonVariations = cacheJsonVariations;
+            return this;
+        }
+
+        /**
+         * Set a cache of the evaluation results in front of the evaluator, for the applications whose evaluations
+         * are mostly requested by a small set of users. A result is cached by user attributes, flag key and flag version,
+         * the least recently used results are evicted beyond the max size and a result expires after the given time.
+         * The whole cache is invalidated when new data is received. The cached evaluations send the same insight events.
+         * The statistics are given by {@link FBClient#getEvaluationCacheStats()}.
+         * The default is 0, no cache.
+         *
+         * @param maxSize          the max number of cached results, 0 or negative if disabled
+         * @param expireAfterWrite the time a result is cached, null or zero if it doesn't expire
+         * @return the builder
+         */
+        public Builder evaluationCache(int maxSize, Duration expireAfterWrite) {
+            this.evaluationCacheSize = maxSize;
+            this.evaluationCacheTtl = expireAfterWrite;
+            return this;
+        }
+
+        /**
+         * Set an executor to evaluate the flags of {@link FBClient#getAllLatestFlagsVariations(co.featbit.commons.model.FBUser)}
+         * in parallel when the environment has many flags: the flags are split in tasks of the given number of flags,
+         * evaluated in the executor and the calling thread. The results are the same and in the same order as a sequential evaluation.
+         * The tasks rejected by the executor are evaluated in the calling thread. The executor is not shut down by the client.
+         * The default is null, the flags are evaluated in the calling thread.
+         *
+         * @param executor        the executor, null if the flags are evaluated sequentially
+         * @param flagsPerTask the number of flags evaluated by a task, 0 or negative for the default 128
+         * @return the builder
+         */
+        public Builder allFlagsExecutor(Executor executor, int flagsPerTask) {
+            this.allFlagsExecutor = executor;
+            this.allFlagsPerTask = flagsPerTask;
+            return this;
+        }
+
         /**
          * Builds the configured {@link FBConfig}
          *
@@ -38,7 +38,8 @@ abstract class FactoryImp {
 
         @Override
         public DataStorage createDataStorage(Context config) {
-            return new InMemoryDataStorage();
+            int massiveSegmentThreshold = config instanceof ContextImp ? ((ContextImp) config).getMassiveSegmentThreshold() : 0;
+            return new InMemoryDataStorage(massiveSegmentThreshold);
         }
     }
 
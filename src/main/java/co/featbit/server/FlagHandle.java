@@ -0,0 +1,208 @@
+package co.featbit.server;
+
+import co.featbit.commons.model.EvalDetail;
+import co.featbit.commons.model.FBUser;
+import co.featbit.server.exterior.FBClient;
+import org.apache.commons.lang3.StringUtils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A handle on a feature flag, given by {@link co.featbit.server.exterior.FBClient#flag(String)}.
+ * <p>
+ * The handle holds the current version of the flag: the flag key is looked up and checked once,
+ * the updates of the flag received by the client replace the flag of the handle.
+ * The evaluations of a handle are the same as the evaluations of the client by flag key, including the insight events
+ * and the {@link EvaluationScope}, a handle may be kept in a static field and used in the hot paths:
+ * <pre><code>
+ *     private static final FlagHandle CHECKOUT_V2 = client.flag("checkout-v2");
+ *     ...
+ *     if (CHECKOUT_V2.bool(user, false)) {
+ *         ...
+ *     }
+ * </code></pre>
+ * A handle is thread safe. If the client is configured with {@link Factory#externalDataSynchronization()}
+ * and is not offline, the flag is updated by an external process, it's looked up in the data storage in each evaluation.
+ * The handle of a client other than {@link FBClientImp}, see {@link #of(FBClient, String)}, is evaluated by the variation methods of the client.
+ */
+public final class FlagHandle {
+
+    // null if the handle is evaluated by the variation methods of another client
+    private final FBClientImp client;
+
+    private final FBClient delegate;
+
+    private final String key;
+
+    private final boolean followsUpdates;
+
+    private volatile DataModel.FeatureFlag flag;
+
+    FlagHandle(FBClientImp client, String key, boolean followsUpdates) {
+        this.client = client;
+        this.delegate = client;
+        this.key = key;
+        this.followsUpdates = followsUpdates;
+    }
+
+    private FlagHandle(FBClient delegate, String key) {
+        this.client = null;
+        this.delegate = delegate;
+        this.key = key;
+        this.followsUpdates = false;
+    }
+
+    /**
+     * returns a handle evaluated by the variation methods of a client, for the implementations of {@link FBClient#flag(String)}
+     *
+     * @param client         the client
+     * @param featureFlagKey the unique key for the feature flag
+     * @return a {@link FlagHandle}
+     * @throws IllegalArgumentException if the flag key is blank
+     */
+    public static FlagHandle of(FBClient client, String featureFlagKey) {
+        checkNotNull(client, "client should not be null");
+        checkArgument(StringUtils.isNotBlank(featureFlagKey), "feature flag key is invalid");
+        return new FlagHandle(client, featureFlagKey);
+    }
+
+    /**
+     * @return the key of the flag
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return true if the flag exists in the current data of the client
+     */
+    public boolean isKnown() {
+        if (client == null) {
+            return delegate.isInitialized() && delegate.isFlagKnown(key);
+        }
+        return client.isInitialized() && getFlag() != null;
+    }
+
+    /**
+     * @return the current version of the flag, null if not found
+     */
+    DataModel.FeatureFlag getFlag() {
+        return followsUpdates ? flag : client.getFlagInternal(key);
+    }
+
+    /**
+     * looks up the flag in the data storage of the client, called when the flag may have been updated.
+     * synchronized to never replace a newer version by an older one read concurrently.
+     */
+    synchronized void refresh() {
+        if (followsUpdates) {
+            flag = client.getFlagInternal(key);
+        }
+    }
+
+    /**
+     * @see co.featbit.server.exterior.FBClient#boolVariation(String, FBUser, Boolean)
+     */
+    public boolean bool(FBUser user, boolean defaultValue) {
+        if (client == null) {
+            return delegate.boolVariation(key, user, defaultValue);
+        }
+        DataModel.Variation variation = client.evaluateVariation(this, user, Boolean.class);
+        if (variation != null) {
+            return variation.getBooleanValue();
+        }
+        return client.evaluate(this, user, defaultValue, Boolean.class).getBooleanValue();
+    }
+
+    /**
+     * @see co.featbit.server.exterior.FBClient#boolVariationDetail(String, FBUser, Boolean)
+     */
+    public EvalDetail<Boolean> boolDetail(FBUser user, boolean defaultValue) {
+        if (client == null) {
+            return delegate.boolVariationDetail(key, user, defaultValue);
+        }
+        return client.evaluate(this, user, defaultValue, Boolean.class).toBooleanDetail();
+    }
+
+    /**
+     * @see co.featbit.server.exterior.FBClient#variation(String, FBUser, String)
+     */
+    public String string(FBUser user, String defaultValue) {
+        if (client == null) {
+            return delegate.variation(key, user, defaultValue);
+        }
+        DataModel.Variation variation = client.evaluateVariation(this, user, null);
+        if (variation != null) {
+            return variation.getValue();
+        }
+        return client.evaluate(this, user, defaultValue, null).getValue();
+    }
+
+    /**
+     * @see co.featbit.server.exterior.FBClient#variationDetail(String, FBUser, String)
+     */
+    public EvalDetail<String> stringDetail(FBUser user, String defaultValue) {
+        if (client == null) {
+            return delegate.variationDetail(key, user, defaultValue);
+        }
+        return client.evaluate(this, user, defaultValue, null).toStringDetail();
+    }
+
+    /**
+     * @see co.featbit.server.exterior.FBClient#intVariation(String, FBUser, Integer)
+     */
+    public int intValue(FBUser user, int defaultValue) {
+        if (client == null) {
+            return delegate.intVariation(key, user, defaultValue);
+        }
+        DataModel.Variation variation = client.evaluateVariation(this, user, Integer.class);
+        if (variation != null && variation.isParsedNumber()) {
+            return (int) variation.getDoubleValue();
+        }
+        return (int) client.evaluate(this, user, defaultValue, Integer.class).getDoubleValue();
+    }
+
+    /**
+     * @see co.featbit.server.exterior.FBClient#longVariation(String, FBUser, Long)
+     */
+    public long longValue(FBUser user, long defaultValue) {
+        if (client == null) {
+            return delegate.longVariation(key, user, defaultValue);
+        }
+        DataModel.Variation variation = client.evaluateVariation(this, user, Long.class);
+        if (variation != null && variation.isParsedNumber()) {
+            return (long) variation.getDoubleValue();
+        }
+        return (long) client.evaluate(this, user, defaultValue, Long.class).getDoubleValue();
+    }
+
+    /**
+     * @see co.featbit.server.exterior.FBClient#doubleVariation(String, FBUser, Double)
+     */
+    public double doubleValue(FBUser user, double defaultValue) {
+        if (client == null) {
+            return delegate.doubleVariation(key, user, defaultValue);
+        }
+        DataModel.Variation variation = client.evaluateVariation(this, user, Double.class);
+        if (variation != null && variation.isParsedNumber()) {
+            return variation.getDoubleValue();
+        }
+        return client.evaluate(this, user, defaultValue, Double.class).getDoubleValue();
+    }
+
+    /**
+     * @see co.featbit.server.exterior.FBClient#jsonVariation(String, FBUser, Class, Object)
+     */
+    public <T> T json(FBUser user, Class<T> clazz, T defaultValue) {
+        if (client == null) {
+            return delegate.jsonVariation(key, user, clazz, defaultValue);
+        }
+        return client.evaluateJson(this, user, clazz, defaultValue);
+    }
+
+    @Override
+    public String toString() {
+        return "FlagHandle{" + key + "}";
+    }
+}
@@ -2,38 +2,32 @@ package co.featbit.server;
 
 import co.featbit.commons.model.AllFlagStates;
 import co.featbit.commons.model.EvalDetail;
+import co.featbit.commons.model.FBUser;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import org.apache.commons.lang3.BooleanUtils;
 
-import java.util.AbstractMap;
 import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 import static co.featbit.server.Evaluator.*;
 
 abstract class Implicits {
-    static final class ComplexAllFlagStates implements AllFlagStates {
+
+    /**
+     * the typed getters of the flag states, the results are given by the subclasses
+     */
+    abstract static class BaseAllFlagStates implements AllFlagStates {
 
         private boolean success;
 
         private String reason;
 
-        private transient final Consumer<InsightTypes.Event> eventHandler;
-
-        private transient final Map<String, Map.Entry<Evaluator.EvalResult, InsightTypes.FlagEvent>> cache;
-
-
-        ComplexAllFlagStates(boolean success,
-                             String reason,
-                             Map<Evaluator.EvalResult, InsightTypes.FlagEvent> data,
-                             Consumer<InsightTypes.Event> eventHandler) {
+        BaseAllFlagStates(boolean success, String reason) {
             this.success = success;
             this.reason = reason;
-            this.eventHandler = eventHandler;
-            ImmutableMap.Builder<String, Map.Entry<Evaluator.EvalResult, InsightTypes.FlagEvent>> builder = ImmutableMap.builder();
-            data.forEach((evalResult, event) -> builder.put(evalResult.getKeyName(), new AbstractMap.SimpleImmutableEntry<>(evalResult, event)));
-            cache = builder.build();
         }
 
         @Override
@@ -46,23 +40,27 @@ abstract class Implicits {
             return reason;
         }
 
-        @Override
-        public Collection<String> getFlagKeys() {
-            return cache.keySet();
-        }
+        /**
+         * @return the result of a flag, null if not found
+         */
+        abstract Evaluator.EvalResult getResult(String flagKeyName);
+
+        /**
+         * called when the result of a flag is read with the right type
+         */
+        abstract void onRead(String flagKeyName, Evaluator.EvalResult er);
 
         private Evaluator.EvalResult getInternal(String flagKeyName, Object defaultValue, Class<?> requiredType) {
-            Map.Entry<Evaluator.EvalResult, InsightTypes.FlagEvent> entry = cache.get(flagKeyName);
-            if (entry == null) {
+            Evaluator.EvalResult er = getResult(flagKeyName);
+            if (er == null) {
                 return Evaluator.EvalResult.error(defaultValue.toString(), REASON_FLAG_NOT_FOUND, flagKeyName, FLAG_NAME_UNKNOWN);
             }
-            Evaluator.EvalResult er = entry.getKey();
+            // a flag that failed to evaluate gives the default value, no insight is sent
+            if (er.isDefaultValue() && REASON_ERROR.equals(er.getReason())) {
+                return Evaluator.EvalResult.error(defaultValue.toString(), REASON_ERROR, er.getKeyName(), er.getName());
+            }
             if (Utils.checkType(er.getFlagType(), requiredType, defaultValue.toString())) {
-                if (eventHandler != null) {
-                    InsightTypes.FlagEvent event = entry.getValue();
-                    event.updateTimeStamp();
-                    eventHandler.accept(event);
-                }
+                onRead(flagKeyName, er);
                 return er;
             }
             return Evaluator.EvalResult.error(defaultValue.toString(), REASON_WRONG_TYPE, er.getKeyName(), er.getName());
@@ -71,7 +69,7 @@ abstract class Implicits {
         @Override
         public EvalDetail<String> getStringDetail(String flagKeyName, String defaultValue) {
             Evaluator.EvalResult er = getInternal(flagKeyName, defaultValue, String.class);
-            return er.toEvalDetail(er.getValue());
+            return er.toStringDetail();
         }
 
         @Override
@@ -87,7 +85,7 @@ abstract class Implicits {
         @Override
         public EvalDetail<Boolean> getBooleanDetail(String flagKeyName, Boolean defaultValue) {
             Evaluator.EvalResult er = getInternal(flagKeyName, defaultValue, Boolean.class);
-            return er.toEvalDetail(BooleanUtils.toBoolean(er.getValue()));
+            return er.toBooleanDetail();
         }
 
         @Override
@@ -98,7 +96,7 @@ abstract class Implicits {
         @Override
         public EvalDetail<Integer> getIntegerDetail(String flagKeyName, Integer defaultValue) {
             Evaluator.EvalResult er = getInternal(flagKeyName, defaultValue, Integer.class);
-            return er.toEvalDetail(Double.valueOf(er.getValue()).intValue());
+            return er.toIntegerDetail();
         }
 
         @Override
@@ -109,7 +107,7 @@ abstract class Implicits {
         @Override
         public EvalDetail<Long> getLongDetail(String flagKeyName, Long defaultValue) {
             Evaluator.EvalResult er = getInternal(flagKeyName, defaultValue, Long.class);
-            return er.toEvalDetail(Double.valueOf(er.getValue()).longValue());
+            return er.toLongDetail();
         }
 
         @Override
@@ -120,7 +118,7 @@ abstract class Implicits {
         @Override
         public EvalDetail<Double> getDoubleDetail(String flagKeyName, Double defaultValue) {
             Evaluator.EvalResult er = getInternal(flagKeyName, defaultValue, Double.class);
-            return er.toEvalDetail(Double.valueOf(er.getValue()));
+            return er.toDoubleDetail();
         }
 
         @Override
@@ -135,4 +133,140 @@ abstract class Implicits {
             return er.toEvalDetail(value);
         }
     }
+
+    static final class ComplexAllFlagStates extends BaseAllFlagStates {
+
+        private transient final FBUser user;
+
+        private transient final Consumer<InsightTypes.Event> eventHandler;
+
+        private transient final Map<String, Evaluator.EvalResult> cache;
+
+        /**
+         * @param results      the results of the flags
+         * @param user         the user of the results
+         * @param eventHandler receives the insight event of a flag each time it's read, null if nothing is sent
+         */
+        ComplexAllFlagStates(boolean success,
+                             String reason,
+                             Collection<Evaluator.EvalResult> results,
+                             FBUser user,
+                             Consumer<InsightTypes.Event> eventHandler) {
+            super(success, reason);
+            this.user = user;
+            this.eventHandler = user == null ? null : eventHandler;
+            ImmutableMap.Builder<String, Evaluator.EvalResult> builder = ImmutableMap.builder();
+            results.forEach(evalResult -> builder.put(evalResult.getKeyName(), evalResult));
+            cache = builder.build();
+        }
+
+        @Override
+        public Collection<String> getFlagKeys() {
+            return cache.keySet();
+        }
+
+        @Override
+        Evaluator.EvalResult getResult(String flagKeyName) {
+            return cache.get(flagKeyName);
+        }
+
+        @Override
+        void onRead(String flagKeyName, Evaluator.EvalResult er) {
+            if (eventHandler != null) {
+                // the event is created when the flag is read, with the time of the reading
+                eventHandler.accept(InsightTypes.FlagEvent.of(user).add(InsightTypes.FlagEventVariation.of(flagKeyName, er)));
+            }
+        }
+    }
+
+    /**
+     * the states of all the flags of a snapshot for a user, a flag is evaluated the first time it's read.
+     * the insight event of a flag is sent once, the first time it's read. thread safe.
+     */
+    static final class LazyAllFlagStates extends BaseAllFlagStates {
+
+        private transient final DataSnapshot snapshot;
+
+        private transient final Evaluator evaluator;
+
+        private transient final FBUser user;
+
+        private transient final Consumer<InsightTypes.Event> eventHandler;
+
+        // prepared on the first evaluation, guarded by this
+        private transient EvaluationContext context;
+
+        private transient final Map<String, Evaluator.EvalResult> results = new ConcurrentHashMap<>();
+
+        private transient final Set<String> trackedFlagKeys = ConcurrentHashMap.newKeySet();
+
+        private transient volatile Collection<String> flagKeys;
+
+        /**
+         * @param snapshot             the data the flags are evaluated against
+         * @param user                 the user
+         * @param regexMatchStepBudget the budget of the regex clauses
+         * @param attributeSlots       the attribute slots of the client
+         * @param eventHandler         receives the insight event of a flag the first time it's read, null if nothing is sent
+         */
+        LazyAllFlagStates(DataSnapshot snapshot, FBUser user, int regexMatchStepBudget, AttributeSlots attributeSlots, Consumer<InsightTypes.Event> eventHandler) {
+            super(true, "");
+            this.snapshot = snapshot;
+            this.evaluator = snapshot.newEvaluator(regexMatchStepBudget, attributeSlots);
+            this.user = user;
+            this.eventHandler = eventHandler;
+        }
+
+        @Override
+        public Collection<String> getFlagKeys() {
+            Collection<String> keys = flagKeys;
+            if (keys == null) {
+                ImmutableList.Builder<String> builder = ImmutableList.builder();
+                snapshot.getFlags().forEach(flag -> builder.add(flag.getKey()));
+                keys = builder.build();
+                flagKeys = keys;
+            }
+            return keys;
+        }
+
+        @Override
+        Evaluator.EvalResult getResult(String flagKeyName) {
+            if (flagKeyName == null) {
+                return null;
+            }
+            Evaluator.EvalResult er = results.get(flagKeyName);
+            if (er != null) {
+                return er;
+            }
+            DataModel.FeatureFlag flag = snapshot.getFlag(flagKeyName);
+            if (flag == null) {
+                return null;
+            }
+            synchronized (this) {
+                er = results.get(flagKeyName);
+                if (er == null) {
+                    try {
+                        if (context == null) {
+                            context = evaluator.prepare(user);
+                        }
+                        er = evaluator.evaluate(flag, context, null);
+                    } catch (Exception ex) {
+                        // the getters never throw, the error is kept as the result of the flag
+                        Loggers.EVALUATION.error("FB JAVA SDK: unexpected error in evaluation of {}", flagKeyName, ex);
+                        er = Evaluator.EvalResult.error(REASON_ERROR, flagKeyName, flag.getName());
+                        context = null;
+                    }
+                    results.put(flagKeyName, er);
+                }
+                return er;
+            }
+        }
+
+        @Override
+        void onRead(String flagKeyName, Evaluator.EvalResult er) {
+            if (eventHandler != null && trackedFlagKeys.add(flagKeyName)) {
+                eventHandler.accept(InsightTypes.FlagEvent.of(user).add(InsightTypes.FlagEventVariation.of(flagKeyName, er)));
+            }
+        }
+    }
 }
@@ -19,9 +19,25 @@ final class InMemoryDataStorage implements DataStorage {
     private boolean initialized = false;
     private Map<DataStorageTypes.Category, Map<String, DataStorageTypes.Item>> allData = ImmutableMap.of();
     private long version = 0;
+    // the user keys named by the segments and the flags of allData, at the same version
+    private UserKeyIndex userKeyIndex = UserKeyIndex.of(ImmutableMap.of(), 0);
+    // the min number of keys of a segment held outside the heap, 0 if disabled
+    private final int massiveSegmentThreshold;
 
     InMemoryDataStorage() {
+        this(0);
+    }
+
+    InMemoryDataStorage(int massiveSegmentThreshold) {
         super();
+        this.massiveSegmentThreshold = Math.max(massiveSegmentThreshold, 0);
+    }
+
+    // the key sets of a segment are built before it's published, out of the evaluations
+    private void prepare(DataStorageTypes.Item item) {
+        if (item instanceof DataModel.Segment) {
+            ((DataModel.Segment) item).buildKeySets(massiveSegmentThreshold);
+        }
     }
 
     @Override
@@ -29,10 +45,13 @@ final class InMemoryDataStorage implements DataStorage {
         if (version == null || this.version >= version || allData == null || allData.isEmpty()) {
             return false;
         }
+        allData.values().forEach(items -> items.values().forEach(this::prepare));
+        UserKeyIndex index = UserKeyIndex.of(allData, version);
 
         rwLock.writeLock().lock();
         try {
             this.allData = ImmutableMap.copyOf(allData);
+            this.userKeyIndex = index;
             initialized = true;
             this.version = version;
             Loggers.DATA_STORAGE.debug("Data storage initialized");
@@ -77,6 +96,7 @@ final class InMemoryDataStorage implements DataStorage {
         if (version == null || this.version >= version || item == null) {
             return false;
         }
+        prepare(item);
         rwLock.writeLock().lock();
         try {
             Map<String, DataStorageTypes.Item> oldItems = allData.get(category);
@@ -110,6 +130,7 @@ final class InMemoryDataStorage implements DataStorage {
                 newData.put(category, newItems.build());
             }
             allData = newData.build();
+            userKeyIndex.update(oldItem, item, version);
             this.version = version;
             if (!initialized) initialized = true;
             Loggers.DATA_STORAGE.debug("upsert item {} into storage", key);
@@ -120,6 +141,34 @@ final class InMemoryDataStorage implements DataStorage {
 
     }
 
+    /**
+     * @return the flags, the segments and the version of the storage at this time
+     */
+    DataSnapshot snapshot() {
+        rwLock.readLock().lock();
+        try {
+            return new DataSnapshot(version, allData.get(DataStorageTypes.FEATURES), allData.get(DataStorageTypes.SEGMENTS), userKeyIndex);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * lists the flags targeting a user key individually, with one lookup in the index of the user keys
+     *
+     * @param userKey a user key
+     * @return the variation ids by flag key
+     */
+    Map<String, String> getTargetedVariationIds(String userKey) {
+        rwLock.readLock().lock();
+        try {
+            UserKeyIndex.Entry entry = userKeyIndex.lookup(userKey, version);
+            return entry == null ? ImmutableMap.of() : entry.getTargetedVariationIds();
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
     @Override
     public boolean isInitialized() {
         rwLock.readLock().lock();
@@ -0,0 +1,393 @@
+package co.featbit.server;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * immutable sets of user keys, used to check the membership of a user in the included/excluded lists of a segment
+ */
+abstract class KeySets {
+
+    // under this size, the keys are held by a guava immutable set
+    static final int COMPACT_THRESHOLD = 1024;
+
+    static final KeySet EMPTY = new SmallKeySet(ImmutableSet.of());
+
+    private KeySets() {
+    }
+
+    /**
+     * a read-only set of user keys
+     */
+    interface KeySet {
+        boolean contains(String key);
+
+        int size();
+
+        void forEachKey(Consumer<String> action);
+    }
+
+    /**
+     * returns an immutable hashed set of the given keys, null keys are ignored.
+     * Large collections are held by a {@link CompactKeySet} that only keeps the keys in an open-addressing table
+     *
+     * @param keys user keys
+     * @return an immutable set
+     */
+    static KeySet of(Collection<String> keys) {
+        return of(keys, 0);
+    }
+
+    /**
+     * returns an immutable hashed set of the given keys like {@link #of(Collection)},
+     * the massive collections are held by a {@link HashedKeySet} outside the heap
+     *
+     * @param keys              user keys
+     * @param massiveThreshold the min number of keys of a {@link HashedKeySet}, 0 or negative if disabled
+     * @return an immutable set
+     */
+    static KeySet of(Collection<String> keys, int massiveThreshold) {
+        if (keys == null || keys.isEmpty()) {
+            return EMPTY;
+        }
+        if (massiveThreshold > 0 && keys.size() >= massiveThreshold) {
+            return new HashedKeySet(keys);
+        }
+        if (keys.size() < COMPACT_THRESHOLD) {
+            ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+            for (String key : keys) {
+                if (key != null) {
+                    builder.add(key);
+                }
+            }
+            return new SmallKeySet(builder.build());
+        }
+        return new CompactKeySet(keys);
+    }
+
+    /**
+     * 64-bit hash of the UTF-16 chars of a string: FNV-1a followed by the murmur3 finalizer
+     */
+    static long hash64(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static final class SmallKeySet implements KeySet {
+        private final ImmutableSet<String> keys;
+
+        SmallKeySet(ImmutableSet<String> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return key != null && keys.contains(key);
+        }
+
+        @Override
+        public int size() {
+            return keys.size();
+        }
+
+        @Override
+        public void forEachKey(Consumer<String> action) {
+            keys.forEach(action);
+        }
+    }
+
+    /**
+     * an immutable set of strings stored in a single array with linear probing:
+     * no entry object per key and no other array than the table, whose load factor is between 0.375 and 0.75.
+     */
+    static final class CompactKeySet implements KeySet {
+        private final String[] table;
+        private final int mask;
+        private final int size;
+
+        CompactKeySet(Collection<String> keys) {
+            int capacity = Integer.highestOneBit(Math.max(keys.size() * 4 / 3, 2) - 1) << 1;
+            this.table = new String[capacity];
+            this.mask = capacity - 1;
+            int count = 0;
+            for (String key : keys) {
+                if (key != null && insert(key)) {
+                    count++;
+                }
+            }
+            this.size = count;
+        }
+
+        private static int indexOf(String key) {
+            int h = key.hashCode();
+            // spread the high bits, the same way as HashMap
+            return h ^ (h >>> 16);
+        }
+
+        private boolean insert(String key) {
+            int i = indexOf(key) & mask;
+            while (table[i] != null) {
+                if (table[i].equals(key)) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = key;
+            return true;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            if (key == null) {
+                return false;
+            }
+            int i = indexOf(key) & mask;
+            String k;
+            while ((k = table[i]) != null) {
+                if (k.equals(key)) {
+                    return true;
+                }
+                i = (i + 1) & mask;
+            }
+            return false;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void forEachKey(Consumer<String> action) {
+            for (String key : table) {
+                if (key != null) {
+                    action.accept(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * a set of keys held outside the heap: their sorted 64-bit hashes, about 8 bytes per key,
+     * and the keys themselves, encoded in UTF-8 in a single buffer in the order of the hashes.
+     * A blocked bloom filter, also outside the heap, answers most of the negative lookups by reading a single cache line,
+     * a positive answer is found by a binary search of the hash and confirmed by comparing the key,
+     * two keys sharing a hash are never mistaken for each other.
+     */
+    static final class HashedKeySet implements KeySet {
+        // 10 bits per key in the bloom filter, about 1% of false positives confirmed by the hashes
+        private static final int BITS_PER_KEY = 10;
+        private static final int PROBES = 7;
+        private static final int LONGS_PER_BLOCK = 8;
+
+        private final LongBuffer hashes;
+        // the offset of the key of each hash in the utf-8 buffer, followed by the end offset of the last key
+        private final IntBuffer offsets;
+        private final ByteBuffer utf8Keys;
+        private final LongBuffer bloom;
+        private final int blocks;
+        private final int size;
+
+        HashedKeySet(Collection<String> keys) {
+            long[] sortedHashes = new long[keys.size()];
+            String[] sortedKeys = new String[keys.size()];
+            int n = 0;
+            for (String key : keys) {
+                if (key != null) {
+                    sortedHashes[n] = hash64(key);
+                    sortedKeys[n++] = key;
+                }
+            }
+            sort(sortedHashes, sortedKeys, 0, n - 1);
+            // the duplicated keys have the same hash, they are found in the run of their hash
+            int distinct = 0;
+            for (int i = 0; i < n; i++) {
+                boolean duplicated = false;
+                for (int j = distinct - 1; j >= 0 && sortedHashes[j] == sortedHashes[i]; j--) {
+                    if (sortedKeys[j].equals(sortedKeys[i])) {
+                        duplicated = true;
+                        break;
+                    }
+                }
+                if (!duplicated) {
+                    sortedHashes[distinct] = sortedHashes[i];
+                    sortedKeys[distinct++] = sortedKeys[i];
+                }
+            }
+            byte[][] encoded = new byte[distinct][];
+            long length = 0;
+            for (int i = 0; i < distinct; i++) {
+                encoded[i] = sortedKeys[i].getBytes(StandardCharsets.UTF_8);
+                length += encoded[i].length;
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("the keys of a segment exceed 2GB");
+            }
+            this.size = distinct;
+            this.hashes = allocate(Math.max(distinct, 1) * Long.BYTES).asLongBuffer();
+            this.hashes.put(sortedHashes, 0, distinct);
+            this.offsets = allocate((distinct + 1) * Integer.BYTES).asIntBuffer();
+            this.utf8Keys = allocate(Math.max((int) length, 1));
+            for (int i = 0; i < distinct; i++) {
+                offsets.put(i, utf8Keys.position());
+                utf8Keys.put(encoded[i]);
+            }
+            offsets.put(distinct, utf8Keys.position());
+            this.blocks = Math.max((int) (((long) distinct * BITS_PER_KEY + 511) / 512), 1);
+            this.bloom = allocate(blocks * LONGS_PER_BLOCK * Long.BYTES).asLongBuffer();
+            for (int i = 0; i < distinct; i++) {
+                addToBloom(sortedHashes[i]);
+            }
+        }
+
+        private static ByteBuffer allocate(int bytes) {
+            return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+
+        // sorts the keys by hash, the hashes are uniformly distributed
+        private static void sort(long[] hashes, String[] keys, int low, int high) {
+            while (low < high) {
+                long pivot = hashes[(low + high) >>> 1];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (hashes[i] < pivot) i++;
+                    while (hashes[j] > pivot) j--;
+                    if (i <= j) {
+                        long h = hashes[i];
+                        hashes[i] = hashes[j];
+                        hashes[j] = h;
+                        String k = keys[i];
+                        keys[i] = keys[j];
+                        keys[j] = k;
+                        i++;
+                        j--;
+                    }
+                }
+                // recurses into the smaller part
+                if (j - low < high - i) {
+                    sort(hashes, keys, low, j);
+                    low = i;
+                } else {
+                    sort(hashes, keys, i, high);
+                    high = j;
+                }
+            }
+        }
+
+        private int blockOf(long hash) {
+            return (int) ((hash >>> 32) % blocks) * LONGS_PER_BLOCK;
+        }
+
+        private void addToBloom(long hash) {
+            int block = blockOf(hash);
+            int h = (int) hash;
+            int step = (int) (hash >>> 41) | 1;
+            for (int i = 0; i < PROBES; i++, h += step) {
+                int index = block + ((h >>> 6) & (LONGS_PER_BLOCK - 1));
+                bloom.put(index, bloom.get(index) | (1L << h));
+            }
+        }
+
+        private boolean mayContain(long hash) {
+            int block = blockOf(hash);
+            int h = (int) hash;
+            int step = (int) (hash >>> 41) | 1;
+            for (int i = 0; i < PROBES; i++, h += step) {
+                int index = block + ((h >>> 6) & (LONGS_PER_BLOCK - 1));
+                if ((bloom.get(index) & (1L << h)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // the index of the first key of a hash, -1 if not found
+        private int firstIndexOf(long hash) {
+            int low = 0;
+            int high = size - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long value = hashes.get(mid);
+                if (value < hash) {
+                    low = mid + 1;
+                } else {
+                    if (value == hash) {
+                        found = mid;
+                    }
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        private boolean keyEquals(int index, byte[] key) {
+            int start = offsets.get(index);
+            if (offsets.get(index + 1) - start != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (utf8Keys.get(start + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            if (key == null) {
+                return false;
+            }
+            long hash = hash64(key);
+            if (!mayContain(hash)) {
+                return false;
+            }
+            int index = firstIndexOf(hash);
+            if (index < 0) {
+                return false;
+            }
+            byte[] encoded = key.getBytes(StandardCharsets.UTF_8);
+            for (; index < size && hashes.get(index) == hash; index++) {
+                if (keyEquals(index, encoded)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void forEachKey(Consumer<String> action) {
+            for (int i = 0; i < size; i++) {
+                int start = offsets.get(i);
+                byte[] bytes = new byte[offsets.get(i + 1) - start];
+                for (int j = 0; j < bytes.length; j++) {
+                    bytes[j] = utf8Keys.get(start + j);
+                }
+                action.accept(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package co.featbit.server;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * the dispatch index of the rules of a flag that discriminate on the same user attribute.
+ * <p>
+ * A rule having an Equal or IsOneOf clause on the indexed attribute can only match the users whose value is one of
+ * the clause values, a rule having Than clauses on it only the users whose value is in the interval of the clauses.
+ * The index maps a value to the candidate rules in a hash table or in an interval table and the other rules
+ * are always candidates. The candidate rules are then evaluated in the rule order, the first one matched wins
+ * as if all the rules were evaluated one after the other.
+ */
+final class RuleIndex {
+
+    // the min number of rules discriminating on the same attribute to build an index
+    static final int MIN_INDEXED_RULES = 8;
+
+    private static final int[] NO_RULES = new int[0];
+
+    private final List<DataModel.TargetRule> rules;
+
+    private final AttributeSlots.Attribute attribute;
+
+    // the rules having an Equal or IsOneOf clause on the attribute by value
+    private final Map<String, int[]> equalRules;
+
+    // the sorted distinct values of the Than clauses on the attribute
+    private final double[] bounds;
+
+    // the rules having Than clauses on the attribute by region of the bounds:
+    // region 2i + 1 is bounds[i], region 2i is strictly between bounds[i - 1] and bounds[i]
+    private final int[][] rangeRules;
+
+    // the rules that don't discriminate on the attribute
+    private final int[] otherRules;
+
+    private RuleIndex(List<DataModel.TargetRule> rules, AttributeSlots.Attribute attribute) {
+        this.rules = rules;
+        this.attribute = attribute;
+        Map<String, List<Integer>> equalRules = new HashMap<>();
+        List<Integer> rangeRuleIndexes = new ArrayList<>();
+        List<List<Clauses.ThanClause>> rangeClauses = new ArrayList<>();
+        Set<Double> bounds = new TreeSet<>();
+        List<Integer> otherRules = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            Set<String> values = null;
+            List<Clauses.ThanClause> thanClauses = new ArrayList<>();
+            for (Clauses.Clause clause : rules.get(i).getClauses()) {
+                if (clause instanceof Clauses.EqualClause && attribute.equals(((Clauses.EqualClause) clause).getAttribute())) {
+                    values = Collections.singleton(((Clauses.EqualClause) clause).getValue());
+                    break;
+                }
+                if (clause instanceof Clauses.OneOfClause && attribute.equals(((Clauses.OneOfClause) clause).getAttribute())) {
+                    values = ((Clauses.OneOfClause) clause).getValues();
+                    break;
+                }
+                if (clause instanceof Clauses.ThanClause && attribute.equals(((Clauses.ThanClause) clause).getAttribute())) {
+                    thanClauses.add((Clauses.ThanClause) clause);
+                }
+            }
+            if (values != null) {
+                for (String value : values) {
+                    equalRules.computeIfAbsent(value, k -> new ArrayList<>()).add(i);
+                }
+            } else if (!thanClauses.isEmpty()) {
+                rangeRuleIndexes.add(i);
+                rangeClauses.add(thanClauses);
+                for (Clauses.ThanClause clause : thanClauses) {
+                    bounds.add(clause.getValue());
+                }
+            } else {
+                otherRules.add(i);
+            }
+        }
+        ImmutableMap.Builder<String, int[]> builder = ImmutableMap.builder();
+        equalRules.forEach((value, indexes) -> builder.put(value, toArray(indexes)));
+        this.equalRules = builder.build();
+        this.bounds = bounds.stream().mapToDouble(Double::doubleValue).toArray();
+        this.rangeRules = new int[this.bounds.length * 2 + 1][];
+        for (int region = 0; region < rangeRules.length; region++) {
+            double number = pointOf(region);
+            List<Integer> indexes = new ArrayList<>();
+            for (int i = 0; i < rangeRuleIndexes.size(); i++) {
+                if (rangeClauses.get(i).stream().allMatch(clause -> clause.matchNumber(number))) {
+                    indexes.add(rangeRuleIndexes.get(i));
+                }
+            }
+            rangeRules[region] = toArray(indexes);
+        }
+        this.otherRules = toArray(otherRules);
+    }
+
+    /**
+     * builds the index of the rules if enough of them discriminate on the same user attribute
+     *
+     * @param rules the compiled rules of a flag
+     * @return an index or null if the rules are evaluated one after the other
+     */
+    static RuleIndex of(List<DataModel.TargetRule> rules) {
+        if (rules.size() < MIN_INDEXED_RULES) {
+            return null;
+        }
+        Map<AttributeSlots.Attribute, Integer> counts = new HashMap<>();
+        for (DataModel.TargetRule rule : rules) {
+            rule.getClauses().stream()
+                    .map(RuleIndex::attributeOf)
+                    .filter(attribute -> attribute != null && !attribute.isNone())
+                    .distinct()
+                    .forEach(attribute -> counts.merge(attribute, 1, Integer::sum));
+        }
+        AttributeSlots.Attribute bestAttribute = null;
+        int bestCount = MIN_INDEXED_RULES - 1;
+        for (Map.Entry<AttributeSlots.Attribute, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > bestCount) {
+                bestAttribute = entry.getKey();
+                bestCount = entry.getValue();
+            }
+        }
+        return bestAttribute == null ? null : new RuleIndex(rules, bestAttribute);
+    }
+
+    // null if the clause doesn't discriminate on an attribute
+    private static AttributeSlots.Attribute attributeOf(Clauses.Clause clause) {
+        if (clause instanceof Clauses.EqualClause) {
+            return ((Clauses.EqualClause) clause).getAttribute();
+        }
+        if (clause instanceof Clauses.OneOfClause) {
+            return ((Clauses.OneOfClause) clause).getAttribute();
+        }
+        if (clause instanceof Clauses.ThanClause) {
+            return ((Clauses.ThanClause) clause).getAttribute();
+        }
+        return null;
+    }
+
+    private static int[] toArray(List<Integer> indexes) {
+        return indexes.isEmpty() ? NO_RULES : indexes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // a number of a region, any number of a region matches the same Than clauses
+    private double pointOf(int region) {
+        if (region % 2 == 1) {
+            return bounds[region / 2];
+        }
+        int upper = region / 2;
+        if (upper == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        if (upper == bounds.length) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return bounds[upper - 1] + (bounds[upper] - bounds[upper - 1]) / 2;
+    }
+
+    private int regionOf(double number) {
+        int pos = Arrays.binarySearch(bounds, number);
+        return pos >= 0 ? pos * 2 + 1 : (-pos - 1) * 2;
+    }
+
+    AttributeSlots.Attribute getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * returns the first rule matched by the user, only the candidate rules for the user value are evaluated
+     *
+     * @param context the evaluation context of the user
+     * @return the first matched rule or null
+     */
+    DataModel.TargetRule firstMatch(EvaluationContext context) {
+        String pv = context.getProperty(attribute);
+        int[] equal = NO_RULES;
+        int[] range = NO_RULES;
+        if (pv != null) {
+            equal = equalRules.getOrDefault(pv, NO_RULES);
+            // as the Than clauses, only a numeric value is compared
+            if (bounds.length > 0 && StringUtils.isNumeric(pv)) {
+                range = rangeRules[regionOf(Clauses.toDouble(pv))];
+            }
+        }
+        // merges the candidate rules in the rule order, a rule is in only one of the arrays
+        int i = 0, j = 0, k = 0;
+        while (true) {
+            int next = Integer.MAX_VALUE;
+            if (i < equal.length) {
+                next = equal[i];
+            }
+            if (j < range.length && range[j] < next) {
+                next = range[j];
+            }
+            if (k < otherRules.length && otherRules[k] < next) {
+                next = otherRules[k];
+            }
+            if (next == Integer.MAX_VALUE) {
+                return null;
+            }
+            if (i < equal.length && equal[i] == next) {
+                i++;
+            } else if (j < range.length && range[j] == next) {
+                j++;
+            } else {
+                k++;
+            }
+            DataModel.TargetRule rule = rules.get(next);
+            if (Clauses.matchAll(rule.getClauses(), context)) {
+                return rule;
+            }
+        }
+    }
+}
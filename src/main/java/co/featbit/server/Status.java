@@ -10,6 +10,7 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.Consumer;
 
 public abstract class Status {
 
@@ -282,6 +283,8 @@ public abstract class Status {
 
         private final EventBroadcasterImpl<StateListener, State> dataUpdateStateNotifier;
         private final EventBroadcasterImpl<FlagChange.FlagChangeListener, FlagChange.FlagChangeEvent> flagChangeEventNotifier;
+        // notified synchronously of the flag key updated in storage, null key if all the data was replaced
+        private volatile Consumer<String> flagUpdateListener;
 
         public DataUpdaterImpl(DataStorage storage,
                                EventBroadcasterImpl<StateListener, State> dataUpdateStateNotifier,
@@ -317,7 +320,9 @@ public abstract class Status {
         public boolean init(Map<DataStorageTypes.Category, Map<String, DataStorageTypes.Item>> allData, Long version) {
             try {
                 // if storage is empty, synchronized data in using upsert method
-                storage.init(allData, version);
+                if (storage.init(allData, version)) {
+                    notifyFlagUpdate(null);
+                }
             } catch (Exception ex) {
                 handleErrorFromStorage(ex, ErrorTrack.of(DATA_STORAGE_INIT_ERROR, ex.getMessage()));
                 return false;
@@ -334,9 +339,27 @@ public abstract class Status {
                 handleErrorFromStorage(ex, ErrorTrack.of(DATA_STORAGE_UPDATE_ERROR, ex.getMessage()));
                 return false;
             }
+            if (updated && DataStorageTypes.FEATURES.equals(category)) {
+                notifyFlagUpdate(key);
+            }
             return updated;
         }
 
+        void setFlagUpdateListener(Consumer<String> listener) {
+            this.flagUpdateListener = listener;
+        }
+
+        private void notifyFlagUpdate(String featureFlagKey) {
+            Consumer<String> listener = flagUpdateListener;
+            if (listener != null) {
+                try {
+                    listener.accept(featureFlagKey);
+                } catch (Exception ex) {
+                    Loggers.DATA_STORAGE.error("FB JAVA SDK: unexpected error in flag update listener", ex);
+                }
+            }
+        }
+
         @Override
         public void updateStatus(State newState) {
             if (newState == null) {
@@ -0,0 +1,307 @@
+package co.featbit.server;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * finds in one pass over a user property all the StartsWith, EndsWith and Contains patterns of a flag on this attribute.
+ * <p>
+ * The patterns are held by an Aho-Corasick automaton: each occurrence of a pattern in the property is found at
+ * the char where it ends, a Contains pattern is then matched by any occurrence, a StartsWith pattern by an occurrence
+ * at the start of the property and an EndsWith pattern by an occurrence at its end.
+ * The clauses of the rules are given a {@link Clauses.PatternClause} that reads the patterns found
+ * in the {@link EvaluationContext}, so the property is only scanned once by evaluation.
+ */
+final class SubstringMatcher {
+
+    // the min number of StartsWith, EndsWith and Contains clauses on the same attribute of a flag to build a matcher
+    static final int MIN_PATTERNS = 4;
+
+    private static final int STARTS_WITH = 0;
+    private static final int ENDS_WITH = 1;
+    private static final int CONTAINS = 2;
+
+    private static final int ROOT = 0;
+
+    private static final int[] NO_PATTERNS = new int[0];
+
+    private final AttributeSlots.Attribute attribute;
+
+    private final int[] kinds;
+
+    // the patterns found in any property, an empty pattern
+    private final int[] emptyPatterns;
+
+    // the transitions of the automaton: an open-addressing table of (node << 16 | char) to the next node
+    private final long[] edgeKeys;
+    private final int[] edgeNodes;
+    private final int edgeMask;
+
+    private final int[] failures;
+
+    // the nearest node on the failure path having patterns, -1 if none
+    private final int[] outputLinks;
+
+    // the ids of the patterns ending at a node
+    private final int[][] outputs;
+
+    private final int[] depths;
+
+    private SubstringMatcher(AttributeSlots.Attribute attribute, List<String> patterns, List<Integer> kinds) {
+        this.attribute = attribute;
+        this.kinds = kinds.stream().mapToInt(Integer::intValue).toArray();
+        // builds the trie of the patterns
+        List<Map<Character, Integer>> children = new ArrayList<>();
+        List<List<Integer>> outputs = new ArrayList<>();
+        List<Integer> depths = new ArrayList<>();
+        List<Integer> emptyPatterns = new ArrayList<>();
+        children.add(new LinkedHashMap<>());
+        outputs.add(new ArrayList<>());
+        depths.add(0);
+        for (int id = 0; id < patterns.size(); id++) {
+            String pattern = patterns.get(id);
+            if (pattern.isEmpty()) {
+                emptyPatterns.add(id);
+                continue;
+            }
+            int node = ROOT;
+            for (int i = 0; i < pattern.length(); i++) {
+                Integer next = children.get(node).get(pattern.charAt(i));
+                if (next == null) {
+                    next = children.size();
+                    children.add(new LinkedHashMap<>());
+                    outputs.add(new ArrayList<>());
+                    depths.add(i + 1);
+                    children.get(node).put(pattern.charAt(i), next);
+                }
+                node = next;
+            }
+            outputs.get(node).add(id);
+        }
+        this.emptyPatterns = emptyPatterns.stream().mapToInt(Integer::intValue).toArray();
+        int size = children.size();
+        this.depths = depths.stream().mapToInt(Integer::intValue).toArray();
+        this.outputs = new int[size][];
+        for (int node = 0; node < size; node++) {
+            List<Integer> ids = outputs.get(node);
+            this.outputs[node] = ids.isEmpty() ? NO_PATTERNS : ids.stream().mapToInt(Integer::intValue).toArray();
+        }
+        int capacity = Integer.highestOneBit(Math.max(size * 2, 2) - 1) << 1;
+        this.edgeKeys = new long[capacity];
+        this.edgeNodes = new int[capacity];
+        this.edgeMask = capacity - 1;
+        Arrays.fill(edgeKeys, -1L);
+        for (int node = 0; node < size; node++) {
+            for (Map.Entry<Character, Integer> child : children.get(node).entrySet()) {
+                long key = edgeKey(node, child.getKey());
+                int pos = hash(key) & edgeMask;
+                while (edgeKeys[pos] != -1L) {
+                    pos = (pos + 1) & edgeMask;
+                }
+                edgeKeys[pos] = key;
+                edgeNodes[pos] = child.getValue();
+            }
+        }
+        // the failure links in breadth-first order
+        this.failures = new int[size];
+        this.outputLinks = new int[size];
+        outputLinks[ROOT] = -1;
+        int[] queue = new int[size];
+        int head = 0, tail = 0;
+        for (int child : children.get(ROOT).values()) {
+            failures[child] = ROOT;
+            outputLinks[child] = -1;
+            queue[tail++] = child;
+        }
+        while (head < tail) {
+            int node = queue[head++];
+            for (Map.Entry<Character, Integer> entry : children.get(node).entrySet()) {
+                char c = entry.getKey();
+                int child = entry.getValue();
+                int failure = failures[node];
+                int next;
+                while ((next = next(failure, c)) < 0 && failure != ROOT) {
+                    failure = failures[failure];
+                }
+                failures[child] = next < 0 ? ROOT : next;
+                int link = failures[child];
+                outputLinks[child] = this.outputs[link].length > 0 ? link : outputLinks[link];
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    /**
+     * gives the StartsWith, EndsWith and Contains clauses of the rules a shared matcher by attribute,
+     * if the rules have enough of them on the same attribute
+     *
+     * @param rules the compiled rules of a flag
+     */
+    static void share(List<DataModel.TargetRule> rules) {
+        Map<AttributeSlots.Attribute, Integer> counts = new HashMap<>();
+        for (DataModel.TargetRule rule : rules) {
+            for (Clauses.Clause clause : rule.getClauses()) {
+                AttributeSlots.Attribute attribute = attributeOf(unwrap(clause));
+                if (attribute != null && !attribute.isNone()) {
+                    counts.merge(attribute, 1, Integer::sum);
+                }
+            }
+        }
+        for (Map.Entry<AttributeSlots.Attribute, Integer> count : counts.entrySet()) {
+            if (count.getValue() < MIN_PATTERNS) {
+                continue;
+            }
+            AttributeSlots.Attribute attribute = count.getKey();
+            List<String> patterns = new ArrayList<>();
+            List<Integer> kinds = new ArrayList<>();
+            for (DataModel.TargetRule rule : rules) {
+                for (Clauses.Clause clause : rule.getClauses()) {
+                    Clauses.Clause inner = unwrap(clause);
+                    if (attribute.equals(attributeOf(inner))) {
+                        patterns.add(valueOf(inner));
+                        kinds.add(kindOf(inner));
+                    }
+                }
+            }
+            SubstringMatcher matcher = new SubstringMatcher(attribute, patterns, kinds);
+            // the patterns are given the ids in the same order
+            int id = 0;
+            for (DataModel.TargetRule rule : rules) {
+                ImmutableList.Builder<Clauses.Clause> clauses = ImmutableList.builder();
+                for (Clauses.Clause clause : rule.getClauses()) {
+                    Clauses.Clause inner = unwrap(clause);
+                    if (!attribute.equals(attributeOf(inner))) {
+                        clauses.add(clause);
+                        continue;
+                    }
+                    Clauses.Clause patternClause = new Clauses.PatternClause(matcher, id++);
+                    clauses.add(inner == clause ? patternClause : Clauses.not(patternClause));
+                }
+                rule.setClauses(clauses.build());
+            }
+        }
+    }
+
+    private static Clauses.Clause unwrap(Clauses.Clause clause) {
+        return clause instanceof Clauses.NotClause ? ((Clauses.NotClause) clause).getClause() : clause;
+    }
+
+    // null if the clause is not a StartsWith, EndsWith or Contains clause
+    private static AttributeSlots.Attribute attributeOf(Clauses.Clause clause) {
+        if (clause instanceof Clauses.StartsWithClause) {
+            return ((Clauses.StartsWithClause) clause).getAttribute();
+        }
+        if (clause instanceof Clauses.EndsWithClause) {
+            return ((Clauses.EndsWithClause) clause).getAttribute();
+        }
+        if (clause instanceof Clauses.ContainsClause) {
+            return ((Clauses.ContainsClause) clause).getAttribute();
+        }
+        return null;
+    }
+
+    private static String valueOf(Clauses.Clause clause) {
+        if (clause instanceof Clauses.StartsWithClause) {
+            return ((Clauses.StartsWithClause) clause).getValue();
+        }
+        if (clause instanceof Clauses.EndsWithClause) {
+            return ((Clauses.EndsWithClause) clause).getValue();
+        }
+        return ((Clauses.ContainsClause) clause).getValue();
+    }
+
+    private static int kindOf(Clauses.Clause clause) {
+        if (clause instanceof Clauses.StartsWithClause) {
+            return STARTS_WITH;
+        }
+        if (clause instanceof Clauses.EndsWithClause) {
+            return ENDS_WITH;
+        }
+        return CONTAINS;
+    }
+
+    private static long edgeKey(int node, char c) {
+        return ((long) node << 16) | c;
+    }
+
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    private int next(int node, char c) {
+        long key = edgeKey(node, c);
+        int pos = hash(key) & edgeMask;
+        long k;
+        while ((k = edgeKeys[pos]) != -1L) {
+            if (k == key) {
+                return edgeNodes[pos];
+            }
+            pos = (pos + 1) & edgeMask;
+        }
+        return -1;
+    }
+
+    AttributeSlots.Attribute getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * @return the number of longs of the bit set of the pattern ids
+     */
+    int getWords() {
+        return (kinds.length + 63) >>> 6;
+    }
+
+    /**
+     * sets in a bit set the ids of the patterns matched by a user property
+     *
+     * @param pv      the user property, nothing is matched if null
+     * @param matched a cleared bit set of {@link #getWords()} longs at least
+     */
+    void scan(String pv, long[] matched) {
+        if (pv == null) {
+            return;
+        }
+        for (int id : emptyPatterns) {
+            matched[id >>> 6] |= 1L << id;
+        }
+        int last = pv.length() - 1;
+        int node = ROOT;
+        for (int i = 0; i <= last; i++) {
+            char c = pv.charAt(i);
+            int next;
+            while ((next = next(node, c)) < 0 && node != ROOT) {
+                node = failures[node];
+            }
+            node = next < 0 ? ROOT : next;
+            for (int found = outputs[node].length > 0 ? node : outputLinks[node]; found > 0; found = outputLinks[found]) {
+                // the occurrences of the patterns of this node start at the same char
+                int start = i - depths[found] + 1;
+                for (int id : outputs[found]) {
+                    switch (kinds[id]) {
+                        case STARTS_WITH:
+                            if (start != 0) {
+                                continue;
+                            }
+                            break;
+                        case ENDS_WITH:
+                            if (i != last) {
+                                continue;
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                    matched[id >>> 6] |= 1L << id;
+                }
+            }
+        }
+    }
+}
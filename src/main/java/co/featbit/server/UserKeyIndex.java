@@ -0,0 +1,263 @@
+package co.featbit.server;
+
+import co.featbit.server.exterior.DataStorageTypes;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * the inverted index of the user keys named explicitly by the data of an {@link InMemoryDataStorage}:
+ * the segments including or excluding a user key and the flags targeting it individually.
+ * <p>
+ * A user key is mapped to a single immutable {@link Entry}, the keys named by the same segments and flags share
+ * the same entry. The segments whose keys are held outside the heap, see {@link KeySets.HashedKeySet},
+ * are not indexed, their membership is checked as usual.
+ * <p>
+ * The index is updated by the storage under its write lock, item by item, and read without lock by the evaluations
+ * of a {@link DataSnapshot}: a lookup is answered only if the index is at the version of the snapshot and isn't
+ * updated meanwhile, otherwise the evaluation checks the flags and segments one by one.
+ */
+final class UserKeyIndex {
+
+    // the version while the index is updated
+    private static final long UPDATING = -1L;
+
+    private static final String[] NONE = new String[0];
+
+    // the lists of an entry
+    private static final int INCLUDED = 0;
+    private static final int EXCLUDED = 1;
+    private static final int TARGETED = 2;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // the version of the data indexed
+    private volatile long version;
+
+    /**
+     * builds the index of all the segments and flags at a version of the data
+     */
+    static UserKeyIndex of(Map<DataStorageTypes.Category, Map<String, DataStorageTypes.Item>> allData, long version) {
+        UserKeyIndex index = new UserKeyIndex();
+        for (Map<String, DataStorageTypes.Item> items : allData.values()) {
+            items.values().forEach(index::add);
+        }
+        index.version = version;
+        return index;
+    }
+
+    /**
+     * replaces the user keys of an old version of an item by the keys of its new version, the old one may be null
+     */
+    void update(DataStorageTypes.Item oldItem, DataStorageTypes.Item newItem, long version) {
+        this.version = UPDATING;
+        if (oldItem != null) {
+            remove(oldItem);
+        }
+        add(newItem);
+        this.version = version;
+    }
+
+    /**
+     * returns the entry of a user key if the index is at the given version of the data
+     *
+     * @param userKey     a user key
+     * @param dataVersion the version of the data evaluated
+     * @return an entry, {@link Entry#EMPTY} if the key is not named, null if the index can't answer
+     */
+    Entry lookup(String userKey, long dataVersion) {
+        if (userKey == null || version != dataVersion) {
+            return null;
+        }
+        Entry entry = entries.getOrDefault(userKey, Entry.EMPTY);
+        // an update started after the first check, the entry may be of another version
+        return version == dataVersion ? entry : null;
+    }
+
+    /**
+     * @param segment a segment
+     * @return true if the keys of the segment are indexed
+     */
+    static boolean isIndexed(DataModel.Segment segment) {
+        return !(segment.getIncluded() instanceof KeySets.HashedKeySet) && !(segment.getExcluded() instanceof KeySets.HashedKeySet);
+    }
+
+    private void add(DataStorageTypes.Item item) {
+        if (item instanceof DataModel.Segment) {
+            DataModel.Segment segment = (DataModel.Segment) item;
+            if (!segment.isArchived() && isIndexed(segment)) {
+                String id = segment.getId();
+                forEachKey(segment.getIncluded(), entry -> entry.with(INCLUDED, id, null));
+                forEachKey(segment.getExcluded(), entry -> entry.with(EXCLUDED, id, null));
+            }
+        } else if (item instanceof DataModel.FeatureFlag) {
+            DataModel.FeatureFlag flag = (DataModel.FeatureFlag) item;
+            if (!flag.isArchived()) {
+                forEachTarget(flag, (entry, variationId) -> entry.with(TARGETED, flag.getKey(), variationId));
+            }
+        }
+    }
+
+    private void remove(DataStorageTypes.Item item) {
+        if (item instanceof DataModel.Segment) {
+            DataModel.Segment segment = (DataModel.Segment) item;
+            if (!segment.isArchived() && isIndexed(segment)) {
+                String id = segment.getId();
+                forEachKey(segment.getIncluded(), entry -> entry.without(INCLUDED, id));
+                forEachKey(segment.getExcluded(), entry -> entry.without(EXCLUDED, id));
+            }
+        } else if (item instanceof DataModel.FeatureFlag) {
+            DataModel.FeatureFlag flag = (DataModel.FeatureFlag) item;
+            if (!flag.isArchived()) {
+                forEachTarget(flag, (entry, variationId) -> entry.without(TARGETED, flag.getKey()));
+            }
+        }
+    }
+
+    // the keys having the same entry get the same new entry, the entries stay shared
+    private void forEachKey(KeySets.KeySet keys, UnaryOperator<Entry> transition) {
+        Map<Entry, Entry> transitions = new IdentityHashMap<>();
+        keys.forEachKey(key -> replace(key, transitions.computeIfAbsent(entries.getOrDefault(key, Entry.EMPTY), transition)));
+    }
+
+    private void forEachTarget(DataModel.FeatureFlag flag, BiFunction<Entry, String, Entry> transition) {
+        Map<String, Map<Entry, Entry>> transitions = new HashMap<>();
+        flag.getTargetedVariationIds().forEach((key, variationId) -> {
+            Map<Entry, Entry> byEntry = transitions.computeIfAbsent(variationId, v -> new IdentityHashMap<>());
+            replace(key, byEntry.computeIfAbsent(entries.getOrDefault(key, Entry.EMPTY), entry -> transition.apply(entry, variationId)));
+        });
+    }
+
+    private void replace(String key, Entry entry) {
+        if (entry.isEmpty()) {
+            entries.remove(key);
+        } else {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * the segments and the flags naming a user key. The ids are held in small sorted arrays,
+     * the variation ids are in the order of the flag keys.
+     */
+    static final class Entry {
+
+        static final Entry EMPTY = new Entry(NONE, NONE, NONE, NONE);
+
+        private final String[] includedIn;
+
+        private final String[] excludedFrom;
+
+        private final String[] targetingFlags;
+
+        private final String[] variationIds;
+
+        private Entry(String[] includedIn, String[] excludedFrom, String[] targetingFlags, String[] variationIds) {
+            this.includedIn = includedIn;
+            this.excludedFrom = excludedFrom;
+            this.targetingFlags = targetingFlags;
+            this.variationIds = variationIds;
+        }
+
+        boolean isEmpty() {
+            return includedIn.length == 0 && excludedFrom.length == 0 && targetingFlags.length == 0;
+        }
+
+        /**
+         * the same as {@link DataModel.Segment#isMatchUser(String)} for an indexed segment
+         *
+         * @return false if excluded, true if included, null if the segment doesn't name the key
+         */
+        Boolean membershipIn(String segmentId) {
+            if (Arrays.binarySearch(excludedFrom, segmentId) >= 0) {
+                return Boolean.FALSE;
+            }
+            if (Arrays.binarySearch(includedIn, segmentId) >= 0) {
+                return Boolean.TRUE;
+            }
+            return null;
+        }
+
+        /**
+         * the same as {@link DataModel.FeatureFlag#getTargetedVariationId(String)}
+         *
+         * @return a variation id or null if the flag doesn't target the key
+         */
+        String targetedVariationId(String flagKey) {
+            int i = Arrays.binarySearch(targetingFlags, flagKey);
+            return i >= 0 ? variationIds[i] : null;
+        }
+
+        /**
+         * @return the variation ids by flag key of the flags targeting the key
+         */
+        Map<String, String> getTargetedVariationIds() {
+            ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+            for (int i = 0; i < targetingFlags.length; i++) {
+                builder.put(targetingFlags[i], variationIds[i]);
+            }
+            return builder.build();
+        }
+
+        private String[] idsOf(int list) {
+            return list == INCLUDED ? includedIn : list == EXCLUDED ? excludedFrom : targetingFlags;
+        }
+
+        private Entry with(int list, String id, String variationId) {
+            int i = Arrays.binarySearch(idsOf(list), id);
+            if (i >= 0) {
+                return this;
+            }
+            int at = -i - 1;
+            String[] added = insert(idsOf(list), at, id);
+            switch (list) {
+                case INCLUDED:
+                    return new Entry(added, excludedFrom, targetingFlags, variationIds);
+                case EXCLUDED:
+                    return new Entry(includedIn, added, targetingFlags, variationIds);
+                default:
+                    return new Entry(includedIn, excludedFrom, added, insert(variationIds, at, variationId));
+            }
+        }
+
+        private Entry without(int list, String id) {
+            int i = Arrays.binarySearch(idsOf(list), id);
+            if (i < 0) {
+                return this;
+            }
+            String[] removed = delete(idsOf(list), i);
+            switch (list) {
+                case INCLUDED:
+                    return new Entry(removed, excludedFrom, targetingFlags, variationIds);
+                case EXCLUDED:
+                    return new Entry(includedIn, removed, targetingFlags, variationIds);
+                default:
+                    return new Entry(includedIn, excludedFrom, removed, delete(variationIds, i));
+            }
+        }
+
+        private static String[] insert(String[] array, int at, String value) {
+            String[] copy = new String[array.length + 1];
+            System.arraycopy(array, 0, copy, 0, at);
+            copy[at] = value;
+            System.arraycopy(array, at, copy, at + 1, array.length - at);
+            return copy;
+        }
+
+        private static String[] delete(String[] array, int at) {
+            if (array.length == 1) {
+                return NONE;
+            }
+            String[] copy = new String[array.length - 1];
+            System.arraycopy(array, 0, copy, 0, at);
+            System.arraycopy(array, at + 1, copy, at, array.length - at - 1);
+            return copy;
+        }
+    }
+}
@@ -1,32 +1,136 @@
 package co.featbit.server;
 
-import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 final class VariationSplittingAlgorithm {
+
+    // the md5 digest and its buffers are reused by each thread, hashing a key doesn't allocate anything
+    private static final ThreadLocal<KeyHasher> HASHERS = ThreadLocal.withInitial(KeyHasher::new);
+
     static boolean ifKeyBelongsPercentage(String key, double[] percentageRange) {
+        return ifKeyBelongsPercentage(null, key, null, percentageRange);
+    }
+
+    /**
+     * same as {@link #ifKeyBelongsPercentage(String, double[])}, the key is the concatenation of the given parts
+     * but is never built, null parts are ignored
+     */
+    static boolean ifKeyBelongsPercentage(String prefix, String key, String suffix, double[] percentageRange) {
         try {
-            double min = percentageRange[0];
-            double max = percentageRange[1];
-            if (min == 0D && max == 1D)
-                return true;
-            double percentage = percentageOfKey(key);
-            return percentage >= min && percentage < max;
+            return ifKeyBelongsPercentage(prefix, key, suffix, percentageRange[0], percentageRange[1]);
         } catch (Exception ex) {
             return false;
         }
+    }
 
+    static boolean ifKeyBelongsPercentage(String prefix, String key, String suffix, double min, double max) {
+        if (min == 0D && max == 1D)
+            return true;
+        double percentage = percentageOfKey(prefix, key, suffix);
+        return percentage >= min && percentage < max;
     }
 
     static double percentageOfKey(String key) {
+        if (key == null) {
+            return 0D;
+        }
+        return percentageOfKey(null, key, null);
+    }
+
+    /**
+     * returns bit-for-bit the same percentage as {@link #percentageOfKey(String)} of the concatenation of the given parts
+     */
+    static double percentageOfKey(String prefix, String key, String suffix) {
         try {
-            MessageDigest md5 = MessageDigest.getInstance("MD5");
-            md5.update(key.getBytes(StandardCharsets.UTF_8));
-            byte[] digest = md5.digest();
+            byte[] digest = HASHERS.get().digest(prefix, key, suffix);
             int magicNumber = Utils.intLEFromBytes(digest);
             return Math.abs((double) magicNumber / Integer.MIN_VALUE);
         } catch (Exception ex) {
             return 0D;
         }
     }
+
+    /**
+     * feeds the UTF-8 bytes of strings to a md5 digest without encoding them into a new array,
+     * unpaired surrogates are replaced by '?' as {@link String#getBytes(java.nio.charset.Charset)} does
+     */
+    private static final class KeyHasher {
+        private static final byte REPLACEMENT = (byte) '?';
+
+        private final MessageDigest md5;
+        private final byte[] buffer = new byte[256];
+        private final byte[] digest = new byte[16];
+        private int position;
+        private char highSurrogate;
+
+        KeyHasher() {
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                // every implementation of the Java platform is required to support MD5
+                throw new IllegalStateException(e);
+            }
+        }
+
+        byte[] digest(String prefix, String key, String suffix) throws DigestException {
+            md5.reset();
+            position = 0;
+            highSurrogate = 0;
+            update(prefix);
+            update(key);
+            update(suffix);
+            if (highSurrogate != 0) {
+                put(REPLACEMENT);
+            }
+            md5.update(buffer, 0, position);
+            md5.digest(digest, 0, digest.length);
+            return digest;
+        }
+
+        private void update(String s) {
+            if (s == null) {
+                return;
+            }
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (highSurrogate != 0) {
+                    char high = highSurrogate;
+                    highSurrogate = 0;
+                    if (Character.isLowSurrogate(c)) {
+                        int codePoint = Character.toCodePoint(high, c);
+                        put((byte) (0xF0 | (codePoint >> 18)));
+                        put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                        put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                        put((byte) (0x80 | (codePoint & 0x3F)));
+                        continue;
+                    }
+                    put(REPLACEMENT);
+                }
+                if (c < 0x80) {
+                    put((byte) c);
+                } else if (c < 0x800) {
+                    put((byte) (0xC0 | (c >> 6)));
+                    put((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c)) {
+                    highSurrogate = c;
+                } else if (Character.isLowSurrogate(c)) {
+                    put(REPLACEMENT);
+                } else {
+                    put((byte) (0xE0 | (c >> 12)));
+                    put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    put((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+        }
+
+        private void put(byte b) {
+            if (position == buffer.length) {
+                md5.update(buffer, 0, position);
+                position = 0;
+            }
+            buffer[position++] = b;
+        }
+    }
 }
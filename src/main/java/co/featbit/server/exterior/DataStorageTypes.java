@@ -84,7 +84,8 @@ public abstract class DataStorageTypes {
 
         @Override
         public int hashCode() {
-            return Objects.hash(name, tag);
+            // the same value as Objects.hash(name, tag), without allocating the varargs array on each data storage lookup
+            return 31 * (31 + Objects.hashCode(name)) + Objects.hashCode(tag);
         }
     }
 
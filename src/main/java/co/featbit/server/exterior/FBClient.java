@@ -3,11 +3,26 @@ package co.featbit.server.exterior;
 import co.featbit.commons.model.AllFlagStates;
 import co.featbit.commons.model.EvalDetail;
 import co.featbit.commons.model.FBUser;
+import co.featbit.server.BulkEvaluation;
+import co.featbit.server.EvaluationCache;
+import co.featbit.server.EvaluationScope;
 import co.featbit.server.FBClientImp;
+import co.featbit.server.FlagHandle;
 import co.featbit.server.Status;
+import com.google.common.collect.Iterators;
+import org.apache.commons.lang3.StringUtils;
 
 import java.io.Closeable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
+
+import static co.featbit.server.EvaluationReason.REASON_CLIENT_NOT_READY;
+import static co.featbit.server.EvaluationReason.REASON_FLAG_NOT_FOUND;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 
 /**
@@ -140,6 +155,131 @@ public interface FBClient extends Closeable {
      */
     AllFlagStates getAllLatestFlagsVariations(FBUser user);
 
+    /**
+     * Returns the states of all feature flags for a given user like {@link #getAllLatestFlagsVariations(FBUser)},
+     * but a flag is evaluated only when it's read for the first time, for the callers reading a few flags.
+     * <p>
+     * The flags are evaluated against the data at the time this method is called, whatever the updates received meanwhile.
+     * The result of a flag is kept once evaluated, and its insight event is sent once, the first time the flag is read.
+     * The returned states are thread safe.
+     * The default implementation evaluates all the flags like {@link #getAllLatestFlagsVariations(FBUser)}.
+     *
+     * @param user the end user requesting the flags
+     * @return a {@link AllFlagStates}
+     */
+    default AllFlagStates getAllLatestFlagsVariationsLazily(FBUser user) {
+        return getAllLatestFlagsVariations(user);
+    }
+
+    /**
+     * Evaluates a set of feature flags for a given user in a single pass: the flags are evaluated against the same
+     * version of the data, the user and its segments are resolved once, and a single insight event is sent
+     * for all the flags when this method returns, reading the {@link AllFlagStates} sends nothing.
+     * <p>
+     * The unknown flag keys are not in the returned states, they return the default value with the reason flag not found.
+     * The default implementation selects the flags in {@link #getAllLatestFlagsVariations(FBUser)}.
+     *
+     * @param user            the end user requesting the flags
+     * @param featureFlagKeys the keys of the flags to evaluate
+     * @return a {@link AllFlagStates}
+     */
+    default AllFlagStates evaluate(FBUser user, Collection<String> featureFlagKeys) {
+        return new SelectedFlagStates(getAllLatestFlagsVariations(user), featureFlagKeys == null ? Collections.emptyList() : featureFlagKeys);
+    }
+
+    /**
+     * Evaluates a feature flag for a population of users in parallel, for example for rollout analysis or precomputation jobs.
+     * The users are evaluated against the same version of the data, on the fork-join pool running the call,
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()} unless the call is made in a task of another pool.
+     * <p>
+     * The results are counted by variation; no insight event is sent unless {@code sendEvents} is true.
+     * The users are not kept once evaluated, the stream may be larger than the memory.
+     * The default implementation evaluates the users one by one in the calling thread by {@link #variation(String, FBUser, String)}:
+     * an insight event is sent for each user whatever {@code sendEvents}, the users are evaluated against the current data
+     * and the version is 0.
+     *
+     * @param featureFlagKey the unique key for the feature flag
+     * @param users          a stream of end users, consumed by this method
+     * @param sendEvents     true if an insight event is sent for each user
+     * @return a {@link BulkEvaluation}
+     * @throws NullPointerException if the stream is null
+     */
+    default BulkEvaluation bulkEvaluate(String featureFlagKey, Stream<FBUser> users, boolean sendEvents) {
+        checkNotNull(users, "users should not be null");
+        if (!isInitialized()) {
+            return BulkEvaluation.error(featureFlagKey, REASON_CLIENT_NOT_READY);
+        }
+        if (StringUtils.isBlank(featureFlagKey) || !isFlagKnown(featureFlagKey)) {
+            return BulkEvaluation.error(featureFlagKey, REASON_FLAG_NOT_FOUND);
+        }
+        Iterator<String> variations = Iterators.transform(users.iterator(), user ->
+                user == null || StringUtils.isBlank(user.getKey()) ? null : variation(featureFlagKey, user, null));
+        return BulkEvaluation.of(featureFlagKey, 0, variations, false);
+    }
+
+    /**
+     * Evaluates a feature flag for a list of users in parallel, see {@link #bulkEvaluate(String, Stream, boolean)}.
+     * The results are also kept as the bitmaps of the indices of the users given each variation,
+     * see {@link BulkEvaluation#getUserIndices(String)}.
+     * The default implementation is the same as the default of {@link #bulkEvaluate(String, Stream, boolean)}.
+     *
+     * @param featureFlagKey the unique key for the feature flag
+     * @param users          a list of end users, with a fast random access
+     * @param sendEvents     true if an insight event is sent for each user
+     * @return a {@link BulkEvaluation}
+     * @throws NullPointerException if the list is null
+     */
+    default BulkEvaluation bulkEvaluate(String featureFlagKey, List<FBUser> users, boolean sendEvents) {
+        checkNotNull(users, "users should not be null");
+        if (!isInitialized()) {
+            return BulkEvaluation.error(featureFlagKey, REASON_CLIENT_NOT_READY);
+        }
+        if (StringUtils.isBlank(featureFlagKey) || !isFlagKnown(featureFlagKey)) {
+            return BulkEvaluation.error(featureFlagKey, REASON_FLAG_NOT_FOUND);
+        }
+        Iterator<String> variations = Iterators.transform(users.iterator(), user ->
+                user == null || StringUtils.isBlank(user.getKey()) ? null : variation(featureFlagKey, user, null));
+        return BulkEvaluation.of(featureFlagKey, 0, variations, true);
+    }
+    /**
+     * Opens an evaluation scope for a user, usually for the duration of a request, and binds it and the user to the current thread
+     * in {@link co.featbit.server.integrations.FBUserContextHolder}.
+     * Until the scope is closed, the evaluations of this client for the user in the thread are made against the data
+     * at the time the scope is opened, a flag is evaluated once and its insight event is sent once, with all the other flags
+     * evaluated in the scope, when the scope is closed.
+     *
+     * @param user    the end user
+     * @param inherit true if the child threads inherit the scope, see {@link co.featbit.server.integrations.FBUserContextHolder#setCurrentUser(FBUser, boolean)}
+     * @return an {@link EvaluationScope} to close at the end of the request
+     * @throws IllegalArgumentException if the user is invalid
+     */
+    EvaluationScope openEvaluationScope(FBUser user, boolean inherit);
+
+    /**
+     * Returns a handle on a feature flag. The handle holds the current version of the flag, it's evaluated
+     * without looking up the flag key, the updates of the flag replace the flag of the handle.
+     * A handle is created once by flag key and may be kept for the lifetime of the client, even if the flag
+     * doesn't exist yet.
+     * The default implementation returns a new handle evaluated by the variation methods of this client,
+     * see {@link FlagHandle#of(FBClient, String)}.
+     *
+     * @param featureFlagKey the unique key for the feature flag
+     * @return a {@link FlagHandle}
+     * @throws IllegalArgumentException if the flag key is blank
+     */
+    default FlagHandle flag(String featureFlagKey) {
+        return FlagHandle.of(this, featureFlagKey);
+    }
+
+    /**
+     * Returns the statistics of the evaluation cache, see {@link co.featbit.server.FBConfig.Builder#evaluationCache}
+     *
+     * @return the hit and miss counts, all zero if the cache is disabled
+     */
+    default EvaluationCache.Stats getEvaluationCacheStats() {
+        return EvaluationCache.Stats.EMPTY;
+    }
+
     /**
      * Calculates the value of a feature flag for a given user, and returns an object that describes the
      * way the value was determined.
@@ -0,0 +1,111 @@
+package co.featbit.server.exterior;
+
+import co.featbit.commons.model.AllFlagStates;
+import co.featbit.commons.model.EvalDetail;
+import com.google.common.collect.ImmutableList;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static co.featbit.server.EvaluationReason.REASON_FLAG_NOT_FOUND;
+
+/**
+ * the states of a set of flags read from the states of all the flags,
+ * the flags that are not selected are not found. Used by the default {@link FBClient#evaluate(co.featbit.commons.model.FBUser, Collection)}.
+ */
+final class SelectedFlagStates implements AllFlagStates {
+
+    // the same name as the flags not found by the client
+    private static final String FLAG_NAME_UNKNOWN = "flag name unknown";
+
+    private final AllFlagStates states;
+
+    private final Set<String> flagKeys;
+
+    SelectedFlagStates(AllFlagStates states, Collection<String> featureFlagKeys) {
+        this.states = states;
+        Set<String> keys = new LinkedHashSet<>(featureFlagKeys);
+        keys.retainAll(ImmutableList.copyOf(states.getFlagKeys()));
+        this.flagKeys = keys;
+    }
+
+    private <T> EvalDetail<T> notFound(String flagKeyName, T defaultValue) {
+        return EvalDetail.of(defaultValue, true, REASON_FLAG_NOT_FOUND, flagKeyName, FLAG_NAME_UNKNOWN);
+    }
+
+    @Override
+    public boolean isSuccess() {
+        return states.isSuccess();
+    }
+
+    @Override
+    public String getReason() {
+        return states.getReason();
+    }
+
+    @Override
+    public Collection<String> getFlagKeys() {
+        return flagKeys;
+    }
+
+    @Override
+    public String getString(String flagKeyName, String defaultValue) {
+        return getStringDetail(flagKeyName, defaultValue).getVariation();
+    }
+
+    @Override
+    public EvalDetail<String> getStringDetail(String flagKeyName, String defaultValue) {
+        return flagKeys.contains(flagKeyName) ? states.getStringDetail(flagKeyName, defaultValue) : notFound(flagKeyName, defaultValue);
+    }
+
+    @Override
+    public Boolean getBoolean(String flagKeyName, Boolean defaultValue) {
+        return getBooleanDetail(flagKeyName, defaultValue).getVariation();
+    }
+
+    @Override
+    public EvalDetail<Boolean> getBooleanDetail(String flagKeyName, Boolean defaultValue) {
+        return flagKeys.contains(flagKeyName) ? states.getBooleanDetail(flagKeyName, defaultValue) : notFound(flagKeyName, defaultValue);
+    }
+
+    @Override
+    public Integer getInteger(String flagKeyName, Integer defaultValue) {
+        return getIntegerDetail(flagKeyName, defaultValue).getVariation();
+    }
+
+    @Override
+    public EvalDetail<Integer> getIntegerDetail(String flagKeyName, Integer defaultValue) {
+        return flagKeys.contains(flagKeyName) ? states.getIntegerDetail(flagKeyName, defaultValue) : notFound(flagKeyName, defaultValue);
+    }
+
+    @Override
+    public Long getLong(String flagKeyName, Long defaultValue) {
+        return getLongDetail(flagKeyName, defaultValue).getVariation();
+    }
+
+    @Override
+    public EvalDetail<Long> getLongDetail(String flagKeyName, Long defaultValue) {
+        return flagKeys.contains(flagKeyName) ? states.getLongDetail(flagKeyName, defaultValue) : notFound(flagKeyName, defaultValue);
+    }
+
+    @Override
+    public Double getDouble(String flagKeyName, Double defaultValue) {
+        return getDoubleDetail(flagKeyName, defaultValue).getVariation();
+    }
+
+    @Override
+    public EvalDetail<Double> getDoubleDetail(String flagKeyName, Double defaultValue) {
+        return flagKeys.contains(flagKeyName) ? states.getDoubleDetail(flagKeyName, defaultValue) : notFound(flagKeyName, defaultValue);
+    }
+
+    @Override
+    public <T> T getJsonObject(String flagKeyName, T defaultValue, Class<T> clazz) {
+        return getJsonDetail(flagKeyName, defaultValue, clazz).getVariation();
+    }
+
+    @Override
+    public <T> EvalDetail<T> getJsonDetail(String flagKeyName, T defaultValue, Class<T> clazz) {
+        return flagKeys.contains(flagKeyName) ? states.getJsonDetail(flagKeyName, defaultValue, clazz) : notFound(flagKeyName, defaultValue);
+    }
+}
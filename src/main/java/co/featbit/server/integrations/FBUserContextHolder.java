@@ -1,11 +1,33 @@
 package co.featbit.server.integrations;
 
 import co.featbit.commons.model.FBUser;
+import co.featbit.server.EvaluationScope;
 import com.alibaba.ttl.TransmittableThreadLocal;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class FBUserContextHolder {
     private static final ThreadLocal<FBUser> userThreadLocal = new ThreadLocal<>();
     private static final TransmittableThreadLocal<FBUser> inheritedUserThreadLocal = new TransmittableThreadLocal<>();
+    private static final ThreadLocal<ScopeBinding> scopeThreadLocal = new ThreadLocal<>();
+    private static final TransmittableThreadLocal<ScopeBinding> inheritedScopeThreadLocal = new TransmittableThreadLocal<>();
+
+    // a scope bound to a thread, with the user and the scope it replaced, restored when the scope is closed
+    private static final class ScopeBinding {
+        private final EvaluationScope scope;
+        private final FBUser previousUser;
+        private final ScopeBinding previous;
+        // the thread that bound the scope, an inherited binding is shared with the child threads
+        private final Thread owner;
+
+        private ScopeBinding(EvaluationScope scope, FBUser previousUser, ScopeBinding previous) {
+            this.scope = scope;
+            this.previousUser = previousUser;
+            this.previous = previous;
+            this.owner = Thread.currentThread();
+        }
+    }
 
     public static FBUser getCurrentUser() {
         FBUser user = inheritedUserThreadLocal.get();
@@ -15,9 +37,26 @@ public class FBUserContextHolder {
         return user;
     }
 
+    /**
+     * clears the current thread, the evaluation scopes still bound by the thread are closed and their events are sent.
+     * the scopes inherited from a parent thread are only unbound, they are closed by the thread that opened them
+     */
     public static void remove() {
+        Thread current = Thread.currentThread();
+        List<EvaluationScope> scopes = new ArrayList<>();
+        for (ScopeBinding binding = inheritedScopeThreadLocal.get(); binding != null; binding = binding.previous) {
+            if (binding.owner == current) {
+                scopes.add(binding.scope);
+            }
+        }
+        for (ScopeBinding binding = scopeThreadLocal.get(); binding != null; binding = binding.previous) {
+            scopes.add(binding.scope);
+        }
+        scopes.forEach(EvaluationScope::close);
         userThreadLocal.remove();
         inheritedUserThreadLocal.remove();
+        scopeThreadLocal.remove();
+        inheritedScopeThreadLocal.remove();
     }
 
     public static void setCurrentUser(FBUser user, boolean inherit) {
@@ -27,4 +66,60 @@ public class FBUserContextHolder {
             userThreadLocal.set(user);
         }
     }
+
+    /**
+     * returns the evaluation scope bound to the current thread
+     *
+     * @return a scope or null
+     */
+    public static EvaluationScope getCurrentScope() {
+        ScopeBinding binding = inheritedScopeThreadLocal.get();
+        if (binding == null) {
+            binding = scopeThreadLocal.get();
+        }
+        return binding == null ? null : binding.scope;
+    }
+
+    /**
+     * binds an evaluation scope and its user to the current thread,
+     * the current user and scope are restored when the scope is closed
+     *
+     * @param scope   the scope
+     * @param inherit true if the child threads inherit the scope
+     */
+    public static void setCurrentScope(EvaluationScope scope, boolean inherit) {
+        if (inherit) {
+            inheritedScopeThreadLocal.set(new ScopeBinding(scope, inheritedUserThreadLocal.get(), inheritedScopeThreadLocal.get()));
+        } else {
+            scopeThreadLocal.set(new ScopeBinding(scope, userThreadLocal.get(), scopeThreadLocal.get()));
+        }
+        setCurrentUser(scope.getUser(), inherit);
+    }
+
+    /**
+     * unbinds an evaluation scope from the current thread if bound, and restores the user and the scope it replaced
+     *
+     * @param scope the scope
+     */
+    public static void removeScope(EvaluationScope scope) {
+        unbind(inheritedScopeThreadLocal, inheritedUserThreadLocal, scope);
+        unbind(scopeThreadLocal, userThreadLocal, scope);
+    }
+
+    private static void unbind(ThreadLocal<ScopeBinding> scopes, ThreadLocal<FBUser> users, EvaluationScope scope) {
+        ScopeBinding binding = scopes.get();
+        if (binding == null || binding.scope != scope) {
+            return;
+        }
+        restore(users, binding.previousUser);
+        restore(scopes, binding.previous);
+    }
+
+    private static <T> void restore(ThreadLocal<T> threadLocal, T previous) {
+        if (previous == null) {
+            threadLocal.remove();
+        } else {
+            threadLocal.set(previous);
+        }
+    }
 }
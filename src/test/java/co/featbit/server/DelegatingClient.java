@@ -0,0 +1,152 @@
+package co.featbit.server;
+
+import co.featbit.commons.model.AllFlagStates;
+import co.featbit.commons.model.EvalDetail;
+import co.featbit.commons.model.FBUser;
+import co.featbit.server.exterior.FBClient;
+import co.featbit.server.exterior.FlagTracker;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * a client implementing only the abstract methods of {@link FBClient}, to test its default methods
+ */
+final class DelegatingClient implements FBClient {
+
+    private final FBClient client;
+
+    DelegatingClient(FBClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return client.isInitialized();
+    }
+
+    @Override
+    public String variation(String featureFlagKey, FBUser user, String defaultValue) {
+        return client.variation(featureFlagKey, user, defaultValue);
+    }
+
+    @Override
+    public boolean boolVariation(String featureFlagKey, FBUser user, Boolean defaultValue) {
+        return client.boolVariation(featureFlagKey, user, defaultValue);
+    }
+
+    @Override
+    public double doubleVariation(String featureFlagKey, FBUser user, Double defaultValue) {
+        return client.doubleVariation(featureFlagKey, user, defaultValue);
+    }
+
+    @Override
+    public int intVariation(String featureFlagKey, FBUser user, Integer defaultValue) {
+        return client.intVariation(featureFlagKey, user, defaultValue);
+    }
+
+    @Override
+    public long longVariation(String featureFlagKey, FBUser user, Long defaultValue) {
+        return client.longVariation(featureFlagKey, user, defaultValue);
+    }
+
+    @Override
+    public <T> T jsonVariation(String featureFlagKey, FBUser user, Class<T> clazz, T defaultValue) {
+        return client.jsonVariation(featureFlagKey, user, clazz, defaultValue);
+    }
+
+    @Override
+    public boolean isFlagKnown(String featureKey) {
+        return client.isFlagKnown(featureKey);
+    }
+
+    @Override
+    public FlagTracker getFlagTracker() {
+        return client.getFlagTracker();
+    }
+
+    @Override
+    public Status.DataUpdateStatusProvider getDataUpdateStatusProvider() {
+        return client.getDataUpdateStatusProvider();
+    }
+
+    @Override
+    public boolean initializeFromExternalJson(String json) {
+        return client.initializeFromExternalJson(json);
+    }
+
+    @Override
+    public AllFlagStates getAllLatestFlagsVariations(FBUser user) {
+        return client.getAllLatestFlagsVariations(user);
+    }
+
+    @Override
+    public EvaluationScope openEvaluationScope(FBUser user, boolean inherit) {
+        return client.openEvaluationScope(user, inherit);
+    }
+
+    @Override
+    public EvalDetail<String> variationDetail(String featureFlagKey, FBUser user, String defaultValue) {
+        return client.variationDetail(featureFlagKey, user, defaultValue);
+    }
+
+    @Override
+    public EvalDetail<Boolean> boolVariationDetail(String featureFlagKey, FBUser user, Boolean defaultValue) {
+        return client.boolVariationDetail(featureFlagKey, user, defaultValue);
+    }
+
+    @Override
+    public EvalDetail<Double> doubleVariationDetail(String featureFlagKey, FBUser user, Double defaultValue) {
+        return client.doubleVariationDetail(featureFlagKey, user, defaultValue);
+    }
+
+    @Override
+    public EvalDetail<Integer> intVariationDetail(String featureFlagKey, FBUser user, Integer defaultValue) {
+        return client.intVariationDetail(featureFlagKey, user, defaultValue);
+    }
+
+    @Override
+    public EvalDetail<Long> longVariationDetail(String featureFlagKey, FBUser user, Long defaultValue) {
+        return client.longVariationDetail(featureFlagKey, user, defaultValue);
+    }
+
+    @Override
+    public <T> EvalDetail<T> jsonVariationDetail(String featureFlagKey, FBUser user, Class<T> clazz, T defaultValue) {
+        return client.jsonVariationDetail(featureFlagKey, user, clazz, defaultValue);
+    }
+
+    @Override
+    public void flush() {
+        client.flush();
+    }
+
+    @Override
+    public void identify(FBUser user) {
+        client.identify(user);
+    }
+
+    @Override
+    public void trackMetric(FBUser user, String eventName) {
+        client.trackMetric(user, eventName);
+    }
+
+    @Override
+    public void trackMetric(FBUser user, String eventName, double metricValue) {
+        client.trackMetric(user, eventName, metricValue);
+    }
+
+    @Override
+    public void trackMetrics(FBUser user, String... eventNames) {
+        client.trackMetrics(user, eventNames);
+    }
+
+    @Override
+    public void trackMetrics(FBUser user, Map<String, Double> metrics) {
+        client.trackMetrics(user, metrics);
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+}
@@ -1,15 +1,34 @@
 package co.featbit.server;
 
+import co.featbit.commons.json.JsonHelper;
 import co.featbit.commons.model.FBUser;
 import co.featbit.server.exterior.DataStorage;
 import co.featbit.server.exterior.DataStorageTypes;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Resources;
+import org.apache.commons.lang3.BooleanUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static co.featbit.server.Evaluator.*;
 import static co.featbit.server.exterior.DataStorageTypes.FEATURES;
 import static co.featbit.server.exterior.DataStorageTypes.SEGMENTS;
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 class EvaluationTest extends ComponentBaseTest {
 
@@ -17,6 +36,8 @@ class EvaluationTest extends ComponentBaseTest {
 
     Evaluator evaluator;
 
+    Evaluator interpretedEvaluator;
+
     DataModel.FeatureFlag flag;
 
     DataModel.FeatureFlag disabledFlag;
@@ -32,6 +53,27 @@ class EvaluationTest extends ComponentBaseTest {
     FBUser user9 = new FBUser.Builder("test-regex-user").userName("test-regex-user").custom("phone", "18555358000").build();
     FBUser user10 = new FBUser.Builder("test-fallthrough-user").userName("test-fallthrough-user").build();
 
+    List<FBUser> parityUsers() {
+        List<FBUser> users = new ArrayList<>(Arrays.asList(user1, user2, user3, user4, user5, user6, user7, user8, user9, user10));
+        String[] countries = {"us", "fr", "cn", "uk", "CHN"};
+        String[] majors = {"cs", "math", "CS", "MATH", "PHYSICS", "physics", "art"};
+        String[] salaries = {"500", "1000", "2999", "3000", "3001", "abc", "-1"};
+        String[] keys = {"18555358000", "0603111111", "test-user-7@featbit.com", "group-user", "test-user-2", "test-user-1"};
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            String key = i < keys.length ? keys[i] : "user-" + random.nextInt(100000);
+            FBUser.Builder builder = new FBUser.Builder(key).userName(random.nextBoolean() ? "group-" + key + "-user" : key);
+            if (random.nextBoolean()) builder.custom("country", countries[random.nextInt(countries.length)]);
+            if (random.nextBoolean()) builder.custom("major", majors[random.nextInt(majors.length)]);
+            if (random.nextBoolean()) builder.custom("salary", salaries[random.nextInt(salaries.length)]);
+            if (random.nextBoolean()) builder.custom("graduated", random.nextBoolean() ? "TRUE" : "false");
+            if (random.nextBoolean()) builder.custom("email", key + (random.nextBoolean() ? "@gmail.com" : "@featbit.com"));
+            if (random.nextBoolean()) builder.custom("phone", random.nextBoolean() ? "18555358000" : "0603111111");
+            users.add(builder.build());
+        }
+        return users;
+    }
+
     @BeforeEach
     void init() throws Exception {
         dataStorage = new InMemoryDataStorage();
@@ -50,6 +92,8 @@ class EvaluationTest extends ComponentBaseTest {
 
         evaluator = new EvaluatorImp(flagGetter, segmentGetter);
 
+        interpretedEvaluator = new InterpretedEvaluator(flagGetter, segmentGetter);
+
         flag = flagGetter.get("ff-evaluation-test");
 
         disabledFlag = flagGetter.get("ff-test-off");
@@ -72,6 +116,37 @@ class EvaluationTest extends ComponentBaseTest {
         assertEquals(REASON_TARGET_MATCH, res.getReason());
     }
 
+    @Test
+    void testTargetedUsersKeepFirstMatch() {
+        List<DataModel.TargetUser> targetUsers = Arrays.asList(
+                new DataModel.TargetUser(Arrays.asList("both-lists", "first-list", null), "v-true"),
+                new DataModel.TargetUser(null, "v-false"),
+                new DataModel.TargetUser(Arrays.asList("second-list", "both-lists"), "v-false"),
+                new DataModel.TargetUser(Arrays.asList("no-variation"), null),
+                new DataModel.TargetUser(Arrays.asList("no-variation", "last-list"), "v-true"));
+        DataModel.FeatureFlag targeted = new DataModel.FeatureFlag("targeted-id", new Date(), false, false, true,
+                "targeted", "targeted", "boolean",
+                Arrays.asList(new DataModel.Variation("v-true", "true"), new DataModel.Variation("v-false", "false")),
+                targetUsers, null,
+                new DataModel.Fallthrough(false, null, Collections.singletonList(new DataModel.RolloutVariation("v-false", new double[]{0, 1}, 1))),
+                "v-false");
+        targeted.afterDeserialization();
+        String[][] expected = {
+                {"both-lists", "true", REASON_TARGET_MATCH},
+                {"first-list", "true", REASON_TARGET_MATCH},
+                {"second-list", "false", REASON_TARGET_MATCH},
+                {"no-variation", "true", REASON_TARGET_MATCH},
+                {"last-list", "true", REASON_TARGET_MATCH},
+                {"untargeted", "false", REASON_FALLTHROUGH}};
+        for (String[] row : expected) {
+            FBUser user = new FBUser.Builder(row[0]).userName(row[0]).build();
+            Evaluator.EvalResult res = evaluator.evaluate(targeted, user, null);
+            assertEquals(row[1], res.getValue(), row[0]);
+            assertEquals(row[2], res.getReason(), row[0]);
+            assertEquals(row[1], evaluator.evaluateVariation(targeted, user).getValue(), row[0]);
+        }
+    }
+
     @Test
     void testEvaluationWhenMarchTrueCondition() {
         InsightTypes.Event event = InsightTypes.FlagEvent.of(user3);
@@ -136,4 +211,475 @@ class EvaluationTest extends ComponentBaseTest {
         assertEquals(REASON_FALLTHROUGH, res.getReason());
     }
 
+    @Test
+    void testCompiledEvaluationParity() {
+        for (DataStorageTypes.Item item : dataStorage.getAll(FEATURES).values()) {
+            DataModel.FeatureFlag featureFlag = (DataModel.FeatureFlag) item;
+            for (FBUser user : parityUsers()) {
+                Evaluator.EvalResult expected = interpretedEvaluator.evaluate(featureFlag, user, null);
+                Evaluator.EvalResult actual = evaluator.evaluate(featureFlag, user, null);
+                String message = featureFlag.getKey() + " " + user;
+                assertEquals(expected.getIndex(), actual.getIndex(), message);
+                assertEquals(expected.getValue(), actual.getValue(), message);
+                assertEquals(expected.getReason(), actual.getReason(), message);
+                assertEquals(expected.isSendToExperiment(), actual.isSendToExperiment(), message);
+            }
+        }
+    }
+
+    @Test
+    void testRegexMatchFailsClosedWhenStepBudgetExceeded() {
+        Evaluator boundedEvaluator = new EvaluatorImp(key -> null, key -> null, 10000);
+        FBUser user = new FBUser.Builder("test-regex-user").userName("test-regex-user").custom("text", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!").build();
+        EvaluationContext context = new EvaluationContext(boundedEvaluator, user);
+        Clauses.Clause match = Clauses.compile(new DataModel.Condition("text", MATCH_REGEX_CLAUSE, "(.*a){12}"));
+        Clauses.Clause notMatch = Clauses.compile(new DataModel.Condition("text", NOT_MATCH_REGEX_CLAUSE, "(.*a){12}"));
+        assertFalse(match.match(context));
+        assertFalse(notMatch.match(context));
+        Clauses.Clause cheap = Clauses.compile(new DataModel.Condition("text", MATCH_REGEX_CLAUSE, "^a+!$"));
+        assertTrue(cheap.match(context));
+    }
+
+    @Test
+    void testClausesOrderedByCost() {
+        List<Clauses.Clause> clauses = Clauses.compile(Arrays.asList(
+                new DataModel.Condition(IS_IN_SEGMENT_CLAUSE, "", "[\"segment-id\"]"),
+                new DataModel.Condition("phone", MATCH_REGEX_CLAUSE, "^1\\d+$"),
+                new DataModel.Condition("salary", GT_CLAUSE, "1000"),
+                new DataModel.Condition("email", ENDS_WITH_CLAUSE, "@gmail.com"),
+                new DataModel.Condition("major", IS_ONE_OF_CLAUSE, "[\"CS\"]"),
+                new DataModel.Condition("country", EQ_CLAUSE, "CHN"),
+                new DataModel.Condition("email", STARTS_WITH_CLAUSE, "test"),
+                new DataModel.Condition("salary", GT_CLAUSE, "abc")));
+        assertSame(Clauses.NEVER, clauses.get(0));
+        assertTrue(clauses.get(1) instanceof Clauses.EqualClause);
+        assertTrue(clauses.get(2) instanceof Clauses.OneOfClause);
+        assertTrue(clauses.get(3) instanceof Clauses.EndsWithClause);
+        assertTrue(clauses.get(4) instanceof Clauses.StartsWithClause);
+        assertTrue(clauses.get(5) instanceof Clauses.ThanClause);
+        assertTrue(clauses.get(6) instanceof Clauses.RegexClause);
+        assertTrue(clauses.get(7) instanceof Clauses.InSegmentClause);
+    }
+
+    @Test
+    void testOneOfValuesParsedOnce() {
+        FBUser fr = new FBUser.Builder("test-user").userName("test-user").custom("country", "fr").build();
+        FBUser noCountry = new FBUser.Builder("test-user").userName("test-user").build();
+        EvaluationContext frContext = evaluator.prepare(fr);
+        EvaluationContext noCountryContext = evaluator.prepare(noCountry);
+        // duplicated and null values
+        Clauses.Clause oneOf = Clauses.compile(new DataModel.Condition("country", IS_ONE_OF_CLAUSE, "[\"fr\", \"us\", \"fr\", null]"));
+        assertEquals(ImmutableSet.of("fr", "us"), ((Clauses.OneOfClause) oneOf).getValues());
+        assertTrue(oneOf.match(frContext));
+        // a user without the property is never one of the values
+        assertFalse(oneOf.match(noCountryContext));
+        assertTrue(Clauses.compile(new DataModel.Condition("country", NOT_ONE_OF_CLAUSE, "[\"us\"]")).match(noCountryContext));
+        // an empty list matches no user
+        Clauses.Clause empty = Clauses.compile(new DataModel.Condition("country", IS_ONE_OF_CLAUSE, "[]"));
+        assertFalse(empty.match(frContext));
+        assertTrue(Clauses.compile(new DataModel.Condition("country", NOT_ONE_OF_CLAUSE, "[]")).match(frContext));
+        // a malformed value is an empty list, as when it was parsed at evaluation
+        for (String malformed : Arrays.asList("fr", "[\"fr\"", "{\"fr\": 1}", null)) {
+            assertFalse(Clauses.compile(new DataModel.Condition("country", IS_ONE_OF_CLAUSE, malformed)).match(frContext));
+            assertTrue(Clauses.compile(new DataModel.Condition("country", NOT_ONE_OF_CLAUSE, malformed)).match(frContext));
+        }
+        // a large list
+        List<String> tenants = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            tenants.add("tenant-" + i);
+        }
+        Clauses.Clause large = Clauses.compile(new DataModel.Condition("tenant", IS_ONE_OF_CLAUSE, JsonHelper.serialize(tenants)));
+        for (int i = 0; i < 5000; i += 499) {
+            FBUser user = new FBUser.Builder("test-user").userName("test-user").custom("tenant", "tenant-" + i).build();
+            assertTrue(large.match(evaluator.prepare(user)));
+        }
+        FBUser other = new FBUser.Builder("test-user").userName("test-user").custom("tenant", "tenant-5000").build();
+        assertFalse(large.match(evaluator.prepare(other)));
+    }
+
+    @Test
+    void testSegmentValuesParsedOnce() {
+        DataModel.Segment segment = new DataModel.Segment("segment-id", false, new Date(), Arrays.asList("test-user"), null, null);
+        segment.afterDeserialization();
+        Evaluator segmentEvaluator = new EvaluatorImp(key -> null, key -> "segment-id".equals(key) ? segment : null);
+        EvaluationContext member = segmentEvaluator.prepare(new FBUser.Builder("test-user").userName("test-user").build());
+        EvaluationContext nonMember = segmentEvaluator.prepare(new FBUser.Builder("other-user").userName("other-user").build());
+        // unknown and null segment ids are ignored
+        Clauses.Clause inSegment = Clauses.compile(new DataModel.Condition(IS_IN_SEGMENT_CLAUSE, "", "[\"unknown\", null, \"segment-id\", \"segment-id\"]"));
+        assertTrue(inSegment.match(member));
+        assertFalse(inSegment.match(nonMember));
+        Clauses.Clause notInSegment = Clauses.compile(new DataModel.Condition(NOT_IN_SEGMENT_CLAUSE, "", "[\"segment-id\"]"));
+        assertFalse(notInSegment.match(member));
+        assertTrue(notInSegment.match(nonMember));
+        for (String value : Arrays.asList("[]", "segment-id", null)) {
+            assertFalse(Clauses.compile(new DataModel.Condition(IS_IN_SEGMENT_CLAUSE, "", value)).match(member));
+        }
+    }
+
+    @Test
+    void testRuleIndexKeepsFirstMatch() {
+        Random random = new Random(11);
+        List<DataModel.TargetRule> rules = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            List<DataModel.Condition> conditions = new ArrayList<>();
+            switch (random.nextInt(5)) {
+                case 0:
+                    conditions.add(new DataModel.Condition("tier", EQ_CLAUSE, String.valueOf(random.nextInt(50))));
+                    break;
+                case 1:
+                    conditions.add(new DataModel.Condition("tier", IS_ONE_OF_CLAUSE, "[\"" + random.nextInt(50) + "\",\"" + random.nextInt(50) + "\",\"gold\"]"));
+                    break;
+                case 2:
+                    int lower = random.nextInt(50);
+                    conditions.add(new DataModel.Condition("tier", GE_CLAUSE, String.valueOf(lower)));
+                    conditions.add(new DataModel.Condition("tier", LT_CLAUSE, String.valueOf(lower + random.nextInt(5))));
+                    break;
+                case 3:
+                    conditions.add(new DataModel.Condition("tier", GT_CLAUSE, String.valueOf(random.nextInt(60))));
+                    break;
+                default:
+                    conditions.add(new DataModel.Condition("country", EQ_CLAUSE, random.nextBoolean() ? "fr" : "us"));
+            }
+            if (random.nextInt(4) == 0) {
+                conditions.add(new DataModel.Condition("country", NEQ_CLAUSE, "cn"));
+            }
+            DataModel.TargetRule rule = new DataModel.TargetRule(false, null, conditions, new ArrayList<>());
+            rule.compile();
+            rules.add(rule);
+        }
+        RuleIndex ruleIndex = RuleIndex.of(rules);
+        assertNotNull(ruleIndex);
+        assertEquals(AttributeSlots.Attribute.of("tier"), ruleIndex.getAttribute());
+        String[] countries = {"fr", "us", "cn"};
+        String[] tiers = {"gold", "-1", "abc", "1000", "007", ""};
+        for (int i = 0; i < 5000; i++) {
+            FBUser.Builder builder = new FBUser.Builder("user-" + i).userName("user-" + i);
+            if (random.nextInt(10) > 0) {
+                builder.custom("tier", random.nextBoolean() ? String.valueOf(random.nextInt(70)) : tiers[random.nextInt(tiers.length)]);
+            }
+            if (random.nextBoolean()) {
+                builder.custom("country", countries[random.nextInt(countries.length)]);
+            }
+            EvaluationContext context = evaluator.prepare(builder.build());
+            DataModel.TargetRule expected = rules.stream().filter(rule -> Clauses.matchAll(rule.getClauses(), context)).findFirst().orElse(null);
+            assertSame(expected, ruleIndex.firstMatch(context));
+        }
+        assertNull(RuleIndex.of(rules.subList(0, RuleIndex.MIN_INDEXED_RULES - 1)));
+    }
+
+    @Test
+    void testSharedSubstringMatcher() {
+        Random random = new Random(13);
+        String[] ops = {STARTS_WITH_CLAUSE, ENDS_WITH_CLAUSE, CONTAINS_CLAUSE, NOT_CONTAIN_CLAUSE};
+        String[] patterns = {"", "a", "ab", "abab", "b", "ba", "@featbit.com", "@gmail.com", "test", "st-", "中", "😀"};
+        List<DataModel.TargetRule> rules = new ArrayList<>();
+        List<List<Clauses.Clause>> interpreted = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            List<DataModel.Condition> conditions = new ArrayList<>();
+            for (int j = random.nextInt(3) + 1; j > 0; j--) {
+                conditions.add(new DataModel.Condition("email", ops[random.nextInt(ops.length)], patterns[random.nextInt(patterns.length)]));
+            }
+            DataModel.TargetRule rule = new DataModel.TargetRule(false, null, conditions, new ArrayList<>());
+            rule.compile();
+            rules.add(rule);
+            interpreted.add(rule.getClauses());
+        }
+        SubstringMatcher.share(rules);
+        assertTrue(rules.stream().flatMap(rule -> rule.getClauses().stream()).anyMatch(clause -> clause instanceof Clauses.PatternClause));
+        String[] parts = {"a", "b", "ab", "test-", "@featbit.com", "@gmail.com", "中", "😀", "x"};
+        for (int i = 0; i < 3000; i++) {
+            FBUser.Builder builder = new FBUser.Builder("user-" + i).userName("user-" + i);
+            if (random.nextInt(10) > 0) {
+                StringBuilder email = new StringBuilder();
+                for (int j = random.nextInt(6); j > 0; j--) {
+                    email.append(parts[random.nextInt(parts.length)]);
+                }
+                builder.custom("email", email.toString());
+            }
+            EvaluationContext context = evaluator.prepare(builder.build());
+            for (int j = 0; j < rules.size(); j++) {
+                assertEquals(Clauses.matchAll(interpreted.get(j), context), Clauses.matchAll(rules.get(j).getClauses(), context));
+            }
+        }
+    }
+
+    @Test
+    void testSegmentMembershipResolvedOncePerContext() {
+        AtomicInteger ruleEvaluations = new AtomicInteger();
+        DataModel.Segment[] segment = {countingSegment(ruleEvaluations)};
+        Evaluator segmentEvaluator = new EvaluatorImp(key -> null, key -> segment[0]);
+        Clauses.Clause inSegment = Clauses.compile(new DataModel.Condition(IS_IN_SEGMENT_CLAUSE, "", "[\"segment-id\"]"));
+        Clauses.Clause notInSegment = Clauses.compile(new DataModel.Condition(NOT_IN_SEGMENT_CLAUSE, "", "[\"segment-id\"]"));
+        EvaluationContext context = segmentEvaluator.prepare(user1);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(inSegment.match(context));
+            assertFalse(notInSegment.match(context));
+        }
+        assertEquals(1, ruleEvaluations.get());
+        // a new version of the segment
+        segment[0] = countingSegment(ruleEvaluations);
+        assertTrue(inSegment.match(context));
+        assertEquals(2, ruleEvaluations.get());
+        // another user
+        context.reset(user2);
+        assertTrue(inSegment.match(context));
+        assertEquals(3, ruleEvaluations.get());
+    }
+
+    private static DataModel.Segment countingSegment(AtomicInteger ruleEvaluations) {
+        DataModel.TargetRule rule = new DataModel.TargetRule(false, null, new ArrayList<>(), new ArrayList<>());
+        DataModel.Segment segment = new DataModel.Segment("segment-id", false, new Date(), new ArrayList<>(), new ArrayList<>(), Arrays.asList(rule));
+        segment.afterDeserialization();
+        rule.setClauses(Arrays.asList(context -> ruleEvaluations.incrementAndGet() > 0));
+        return segment;
+    }
+
+    @Test
+    void testEvaluationCache() throws Exception {
+        EvaluationCache cache = new EvaluationCache(evaluator, dataStorage::getVersion, 100, Duration.ofMinutes(1));
+        List<InsightTypes.FlagEventVariation> evaluated = new ArrayList<>();
+        List<InsightTypes.FlagEventVariation> cached = new ArrayList<>();
+        Evaluator.EvalResult res = cache.evaluate(flag, user4, capturingEvent(user4, evaluated));
+        // the same attributes in another user instance
+        FBUser sameUser = new FBUser.Builder(user4.getKey()).userName(user4.getUserName()).custom("country", "CHN").build();
+        assertSame(res, cache.evaluate(flag, sameUser, capturingEvent(sameUser, cached)));
+        assertEquals(1, evaluated.size());
+        assertEquals(1, cached.size());
+        assertEquals(evaluated.get(0).getFeatureFlagKeyName(), cached.get(0).getFeatureFlagKeyName());
+        assertSame(evaluated.get(0).getVariation(), cached.get(0).getVariation());
+        cache.evaluate(flag, user5, null);
+        assertEquals(1, cache.getStats().getHitCount());
+        assertEquals(2, cache.getStats().getMissCount());
+        assertEquals(2, cache.getStats().getSize());
+
+        // a newer version of the data invalidates the cache
+        DataModel.Data data = loadData();
+        assertTrue(dataStorage.init(data.toStorageType(), data.getTimestamp() + 1));
+        assertSame(res, cache.evaluate(flag, user4, null));
+        assertEquals(3, cache.getStats().getMissCount());
+        assertEquals(1, cache.getStats().getSize());
+
+        // the least recently used results are evicted
+        EvaluationCache small = new EvaluationCache(evaluator, dataStorage::getVersion, 1, null);
+        small.evaluate(flag, user4, null);
+        small.evaluate(flag, user5, null);
+        small.evaluate(flag, user4, null);
+        assertEquals(0, small.getStats().getHitCount());
+        assertTrue(small.getStats().getEvictionCount() > 0);
+    }
+
+    @Test
+    void testReusableContextReleasesEvaluator() {
+        Evaluator shortLived = new EvaluatorImp(key -> flag, key -> (DataModel.Segment) dataStorage.get(SEGMENTS, key));
+        assertEquals(evaluator.evaluate(flag, user4, null).getValue(), shortLived.evaluateVariation(flag, user4).getValue());
+        // the context of the thread keeps neither the evaluator nor the user once evaluated
+        EvaluationContext context = EvaluatorImp.reusableContext();
+        assertFalse(context.isInUse());
+        assertNull(context.getUser());
+        assertEquals(evaluator.evaluate(flag, user5, null).getValue(), evaluator.evaluateVariation(flag, user5).getValue());
+        assertSame(context, EvaluatorImp.reusableContext());
+    }
+
+    private static InsightTypes.Event capturingEvent(FBUser user, List<InsightTypes.FlagEventVariation> variations) {
+        return new InsightTypes.Event(user) {
+            @Override
+            public boolean isSendEvent() {
+                return !variations.isEmpty();
+            }
+
+            @Override
+            public InsightTypes.Event add(Object element) {
+                variations.add((InsightTypes.FlagEventVariation) element);
+                return this;
+            }
+        };
+    }
+
+    @Test
+    void testPercentageOfKeyWithoutConcatenation() throws Exception {
+        Random random = new Random(7);
+        String[] alphabet = {"a", "Z", "0", "-", "é", "中", "\uD83D\uDE00", "\uD83D", "\uDE00"};
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder flagKey = new StringBuilder();
+            StringBuilder userAttr = new StringBuilder();
+            for (int j = random.nextInt(200); j > 0; j--) flagKey.append(alphabet[random.nextInt(alphabet.length)]);
+            for (int j = random.nextInt(200); j > 0; j--) userAttr.append(alphabet[random.nextInt(alphabet.length)]);
+            assertEquals(md5PercentageOfKey(flagKey.toString() + userAttr),
+                    VariationSplittingAlgorithm.percentageOfKey(null, flagKey.toString(), userAttr.toString()));
+            assertEquals(md5PercentageOfKey(EXPT_KEY_PREFIX + flagKey + userAttr),
+                    VariationSplittingAlgorithm.percentageOfKey(EXPT_KEY_PREFIX, flagKey.toString(), userAttr.toString()));
+            assertEquals(md5PercentageOfKey(flagKey.toString()), VariationSplittingAlgorithm.percentageOfKey(flagKey.toString()));
+        }
+    }
+
+    @Test
+    void testPreparedContextResolvesAttributesLikeUser() {
+        FBUser user = new FBUser.Builder("test-slot-user").userName("test-slot-name").custom("country", "fr").custom("Country", "us").build();
+        EvaluationContext context = evaluator.prepare(user);
+        for (String attribute : Arrays.asList("key", "KeyId", "keyid", "name", "NAME", "country", "Country", "COUNTRY", "unknown")) {
+            int slot = evaluator.attributeSlots.slotOf(attribute);
+            assertEquals(slot, evaluator.attributeSlots.slotOf(attribute));
+            assertEquals(user.getProperty(attribute), context.getProperty(slot));
+            // resolved once, then read from the context
+            assertEquals(user.getProperty(attribute), context.getProperty(AttributeSlots.Attribute.of(attribute)));
+        }
+        // a slot interned after the context was prepared
+        assertNull(context.getProperty(AttributeSlots.Attribute.of("interned-after-prepare")));
+        assertNull(context.getProperty(AttributeSlots.NONE));
+        assertNull(context.getProperty(AttributeSlots.Attribute.of(null)));
+    }
+
+    @Test
+    void testAttributeSlotsByClient() {
+        AttributeSlots slots = new AttributeSlots();
+        AttributeSlots otherSlots = new AttributeSlots();
+        AttributeSlots.Attribute tier = AttributeSlots.Attribute.of("tier");
+        AttributeSlots.Attribute country = AttributeSlots.Attribute.of("country");
+        assertEquals(2, tier.slotIn(slots));
+        assertEquals(3, country.slotIn(slots));
+        // the attributes of a client don't take the slots of another one
+        assertEquals(2, country.slotIn(otherSlots));
+        assertEquals(3, country.slotIn(slots));
+        assertEquals(4, slots.size());
+        assertEquals(3, otherSlots.size());
+        assertEquals(AttributeSlots.KEY, AttributeSlots.Attribute.of("KeyId").slotIn(otherSlots));
+        assertEquals(AttributeSlots.Attribute.of("key"), AttributeSlots.Attribute.of("keyid"));
+        assertNotEquals(AttributeSlots.Attribute.of("Country"), country);
+        FBUser user = new FBUser.Builder("test-slot-user").userName("test-slot-name").custom("country", "fr").build();
+        assertEquals("fr", new EvaluationContext(new EvaluatorImp(key -> null, key -> null, 0, otherSlots), user).getProperty(country));
+    }
+
+    @Test
+    void testSharedEvalResults() throws Exception {
+        Evaluator.EvalResult res = evaluator.evaluate(flag, user10, null);
+        assertSame(res, evaluator.evaluate(flag, user10, InsightTypes.FlagEvent.of(user10)));
+        assertSame(res.toStringDetail(), evaluator.evaluate(flag, user10, null).toStringDetail());
+        assertSame(evaluator.evaluate(disabledFlag, user1, null), evaluator.evaluate(disabledFlag, user2, null));
+        // a new version of the flag has its own results
+        DataModel.FeatureFlag reloaded = loadData().getFeatureFlags().stream().filter(f -> f.getKey().equals(flag.getKey())).findFirst().get();
+        Evaluator.EvalResult other = evaluator.evaluate(reloaded, user10, null);
+        assertNotSame(res, other);
+        assertEquals(res.getIndex(), other.getIndex());
+        assertEquals(res.getReason(), other.getReason());
+    }
+
+    @Test
+    void testConstantFoldedEvaluation() throws Exception {
+        assertNotNull(disabledFlag.getConstantResult());
+        assertNull(flag.getConstantVariation());
+        // the same flag switched on, served to 100% of the users by the fallthrough
+        String json = Resources.toString(Resources.getResource("fbclient_test_data.json"), Charsets.UTF_8)
+                .replace("\"isEnabled\": false", "\"isEnabled\": true")
+                .replace("\"exptIncludeAllTargets\": true", "\"exptIncludeAllTargets\": false");
+        DataModel.FeatureFlag enabledFlag = JsonHelper.deserialize(json, DataModel.All.class).data().getFeatureFlags()
+                .stream().filter(f -> f.getKey().equals(disabledFlag.getKey())).findFirst().get();
+        assertNotNull(enabledFlag.getConstantResult());
+        for (DataModel.FeatureFlag featureFlag : Arrays.asList(disabledFlag, enabledFlag)) {
+            for (FBUser user : parityUsers()) {
+                Evaluator.EvalResult expected = interpretedEvaluator.evaluate(featureFlag, user, null);
+                InsightTypes.Event event = InsightTypes.FlagEvent.of(user);
+                Evaluator.EvalResult actual = evaluator.evaluate(featureFlag, user, event);
+                assertSame(featureFlag.getConstantResult(), actual);
+                assertSame(featureFlag.getConstantVariation(), evaluator.evaluateVariation(featureFlag, user));
+                assertEquals(expected.getIndex(), actual.getIndex());
+                assertEquals(expected.getReason(), actual.getReason());
+                assertEquals(expected.isSendToExperiment(), actual.isSendToExperiment());
+                // the insight event is still sent
+                assertTrue(event.isSendEvent());
+            }
+        }
+    }
+
+    @Test
+    void testPreparedVariationValues() {
+        List<Class<?>> requiredTypes = Arrays.asList(Boolean.class, Integer.class, Long.class, Double.class, String.class, Object.class);
+        for (DataStorageTypes.Item item : dataStorage.getAll(FEATURES).values()) {
+            DataModel.FeatureFlag featureFlag = (DataModel.FeatureFlag) item;
+            for (DataModel.Variation variation : featureFlag.getVariations()) {
+                Evaluator.EvalResult res = EvalResult.of(featureFlag.getVariationType(), variation, REASON_FALLTHROUGH, false, featureFlag.getKey(), featureFlag.getName());
+                for (Class<?> requiredType : requiredTypes) {
+                    assertEquals(Utils.checkType(featureFlag.getVariationType(), requiredType, variation.getValue()), res.isCompatible(requiredType));
+                }
+                assertEquals(BooleanUtils.toBoolean(variation.getValue()), res.getBooleanValue());
+                if (res.isCompatible(Double.class)) {
+                    assertEquals(Double.parseDouble(variation.getValue()), res.getDoubleValue());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testCompactSegmentKeySet() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            keys.add("user-" + i);
+        }
+        keys.add(null);
+        keys.add("user-42");
+        KeySets.KeySet keySet = KeySets.of(keys);
+        assertTrue(keySet instanceof KeySets.CompactKeySet);
+        assertEquals(5000, keySet.size());
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(keySet.contains("user-" + i));
+            assertFalse(keySet.contains("other-" + i));
+        }
+        assertFalse(keySet.contains(null));
+        assertEquals(2, KeySets.of(Arrays.asList("a", null, "b", "a")).size());
+    }
+
+    @Test
+    void testMassiveSegmentKeySet() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            keys.add("user-" + i);
+        }
+        keys.add("user-42");
+        keys.add("utilisateur-é");
+        KeySets.KeySet keySet = KeySets.of(keys, 50000);
+        assertTrue(keySet instanceof KeySets.HashedKeySet);
+        assertEquals(100001, keySet.size());
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(keySet.contains("user-" + i));
+            assertFalse(keySet.contains("other-" + i));
+        }
+        assertTrue(keySet.contains("utilisateur-é"));
+        assertFalse(keySet.contains("utilisateur-e"));
+        assertFalse(keySet.contains(null));
+        assertFalse(keySet.contains(""));
+        assertTrue(KeySets.of(keys) instanceof KeySets.CompactKeySet);
+        Set<String> copied = new HashSet<>();
+        keySet.forEachKey(copied::add);
+        assertEquals(new HashSet<>(keys), copied);
+    }
+
+    @Test
+    void testMassiveSegmentThresholdPerStorage() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            keys.add("user-" + i);
+        }
+        DataModel.Segment massive = new DataModel.Segment("massive", false, new Date(), keys, null, null);
+        massive.afterDeserialization();
+        DataModel.Segment regular = new DataModel.Segment("regular", false, new Date(), keys, null, null);
+        regular.afterDeserialization();
+        new InMemoryDataStorage(1000).init(ImmutableMap.of(SEGMENTS, ImmutableMap.of("massive", massive)), 1L);
+        new InMemoryDataStorage().init(ImmutableMap.of(SEGMENTS, ImmutableMap.of("regular", regular)), 1L);
+        assertTrue(massive.getIncluded() instanceof KeySets.HashedKeySet);
+        assertTrue(regular.getIncluded() instanceof KeySets.CompactKeySet);
+        assertTrue(massive.isMatchUser("user-1999"));
+        assertNull(massive.isMatchUser("user-2000"));
+        // a segment out of a storage builds its key sets on the first read
+        DataModel.Segment unstored = new DataModel.Segment("unstored", false, new Date(), keys, null, null);
+        unstored.afterDeserialization();
+        assertTrue(unstored.isMatchUser("user-1"));
+        assertTrue(unstored.getIncluded() instanceof KeySets.CompactKeySet);
+    }
+
+    private static double md5PercentageOfKey(String key) throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        md5.update(key.getBytes(StandardCharsets.UTF_8));
+        int magicNumber = Utils.intLEFromBytes(md5.digest());
+        return Math.abs((double) magicNumber / Integer.MIN_VALUE);
+    }
+
 }
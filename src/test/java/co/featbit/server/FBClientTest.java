@@ -1,17 +1,32 @@
 package co.featbit.server;
 
+import co.featbit.commons.json.JsonHelper;
 import co.featbit.commons.model.AllFlagStates;
 import co.featbit.commons.model.EvalDetail;
 import co.featbit.commons.model.FBUser;
 import co.featbit.server.exterior.*;
+import co.featbit.server.integrations.FBUserContextHolder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import org.easymock.EasyMockExtension;
 import org.easymock.EasyMockSupport;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 
+import com.sun.management.ThreadMXBean;
+
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -20,6 +35,7 @@ import static co.featbit.server.Evaluator.*;
 import static co.featbit.server.TestFactory.*;
 import static org.easymock.EasyMock.*;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 @ExtendWith(EasyMockExtension.class)
 class FBClientTest extends FBClientBaseTest {
@@ -185,6 +201,66 @@ class FBClientTest extends FBClientBaseTest {
         }
     }
 
+    @Test
+    void testCachedJsonVariation() throws IOException {
+        FBConfig config = new FBConfig.Builder()
+                .offline(true)
+                .streamingURL("ws://fake-url")
+                .eventURL("http://fake-url")
+                .cacheJsonVariations(true)
+                .build();
+        try (FBClientImp client = new FBClientImp("env-secret", config)) {
+            client.initializeFromExternalJson(readResource("fbclient_test_data.json"));
+            Dummy dummy1 = client.jsonVariation("ff-test-json", user1, Dummy.class, null);
+            assertEquals(200, dummy1.code);
+            assertSame(dummy1, client.jsonVariation("ff-test-json", user1, Dummy.class, null));
+            EvalDetail<Dummy> dummy2 = client.jsonVariationDetail("ff-test-json", user2, Dummy.class, null);
+            assertEquals(404, dummy2.getVariation().code);
+            assertNotSame(dummy1, dummy2.getVariation());
+            // a new version of the flag drops the cached objects
+            assertTrue(client.initializeFromExternalJson(readResource("fbclient_test_data.json").replace("2023-01-19T", "2023-01-20T")));
+            Dummy dummy3 = client.jsonVariation("ff-test-json", user1, Dummy.class, null);
+            assertEquals(200, dummy3.code);
+            assertNotSame(dummy1, dummy3);
+        }
+    }
+
+    @Test
+    void testTypedVariationsWithoutInsightDoNotAllocate() throws IOException {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof ThreadMXBean && ((ThreadMXBean) threadMXBean).isThreadAllocatedMemorySupported());
+        ThreadMXBean allocations = (ThreadMXBean) threadMXBean;
+        FBUser graduated = new FBUser.Builder("test-user-8").userName("test-user-8").custom("graduated", "true").build();
+        FBUser salary = new FBUser.Builder("test-user-9").userName("test-user-9").custom("salary", "3000").custom("country", "fr").build();
+        // offline mode, no insight processor; the per-evaluation info line is disabled by simplelogger.properties
+        // boxed once, the caller would allocate it
+        Double defaultDouble = -1D;
+        try (FBClient client = initClientInOfflineMode()) {
+            Runnable evaluations = () -> {
+                assertTrue(client.boolVariation("ff-test-bool", user1, false));
+                client.boolVariation("ff-test-bool", user3, false);
+                assertFalse(client.boolVariation("ff-test-off", user1, true));
+                assertEquals(33, client.intVariation("ff-test-number", user2, -1));
+                assertEquals(86L, client.longVariation("ff-test-number", user3, -1L));
+                client.doubleVariation("ff-test-number", user4, defaultDouble);
+                assertEquals("teamA", client.variation("ff-test-seg", user1, "error"));
+                client.variation("ff-evaluation-test", graduated, "error");
+                client.variation("ff-evaluation-test", salary, "error");
+            };
+            for (int i = 0; i < 20000; i++) {
+                evaluations.run();
+            }
+            long threadId = Thread.currentThread().getId();
+            int iterations = 10000;
+            long before = allocations.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < iterations; i++) {
+                evaluations.run();
+            }
+            long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+            assertTrue(allocated < iterations, "allocated " + allocated + " bytes");
+        }
+    }
+
     @Test
     void testFlagKnown() throws IOException {
         try (FBClient client = initClientInOfflineMode()) {
@@ -220,6 +296,373 @@ class FBClientTest extends FBClientBaseTest {
         }
     }
 
+    @Test
+    void testAllLatestFlagsVariationsInParallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        FBConfig config = new FBConfig.Builder()
+                .offline(true)
+                .streamingURL("ws://fake-url")
+                .eventURL("http://fake-url")
+                .allFlagsExecutor(executor, 2)
+                .build();
+        try (FBClient sequential = initClientInOfflineMode(); FBClientImp parallel = new FBClientImp("env-secret", config)) {
+            parallel.initializeFromExternalJson(readResource("fbclient_test_data.json"));
+            for (FBUser user : Arrays.asList(user1, user2, user3, user4, email)) {
+                AllFlagStates expected = sequential.getAllLatestFlagsVariations(user);
+                AllFlagStates states = parallel.getAllLatestFlagsVariations(user);
+                assertTrue(states.isSuccess());
+                assertEquals(new ArrayList<>(expected.getFlagKeys()), new ArrayList<>(states.getFlagKeys()));
+                for (String key : expected.getFlagKeys()) {
+                    EvalDetail<String> ed = expected.getStringDetail(key, "error");
+                    EvalDetail<String> ed1 = states.getStringDetail(key, "error");
+                    assertEquals(ed.getVariation(), ed1.getVariation());
+                    assertEquals(ed.getReason(), ed1.getReason());
+                }
+            }
+            // the tasks rejected by a shut down executor are evaluated by the calling thread
+            executor.shutdown();
+            AllFlagStates states = parallel.getAllLatestFlagsVariations(user1);
+            assertTrue(states.isSuccess());
+            assertEquals(sequential.getAllLatestFlagsVariations(user1).getFlagKeys().size(), states.getFlagKeys().size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testAllLatestFlagsVariationsEvents() throws IOException {
+        List<InsightTypes.Event> events = new ArrayList<>();
+        try (FBClient client = initClientWithCapturedEvents(events)) {
+            AllFlagStates states = client.getAllLatestFlagsVariations(user1);
+            assertTrue(events.isEmpty());
+            assertTrue(states.getBoolean("ff-test-bool", false));
+            assertTrue(states.getBoolean("ff-test-bool", false));
+            assertEquals(2, events.size());
+            assertTrue(JsonHelper.serialize(events.get(0)).contains("ff-test-bool"));
+        }
+    }
+
+    @Test
+    void testAllLatestFlagsVariationsLazily() throws IOException {
+        List<InsightTypes.Event> events = new ArrayList<>();
+        try (FBClient client = initClientWithCapturedEvents(events)) {
+            AllFlagStates expected = client.getAllLatestFlagsVariations(user1);
+            AllFlagStates states = client.getAllLatestFlagsVariationsLazily(user1);
+            assertTrue(states.isSuccess());
+            assertEquals(ImmutableSet.copyOf(expected.getFlagKeys()), ImmutableSet.copyOf(states.getFlagKeys()));
+            EvalDetail<Boolean> ed = states.getBooleanDetail("ff-test-bool", false);
+            assertTrue(ed.getVariation());
+            assertEquals(REASON_TARGET_MATCH, ed.getReason());
+            assertTrue(states.getBoolean("ff-test-bool", false));
+            // the event of a flag is sent once
+            assertEquals(1, events.size());
+            for (String key : expected.getFlagKeys()) {
+                assertEquals(expected.getStringDetail(key, "error").getVariation(), states.getStringDetail(key, "error").getVariation());
+            }
+            assertEquals(REASON_FLAG_NOT_FOUND, states.getStringDetail("ff-not-existed", "error").getReason());
+            assertFalse(client.getAllLatestFlagsVariationsLazily(null).isSuccess());
+        }
+        try (FBClient client = initClientInOfflineMode()) {
+            AllFlagStates states = client.getAllLatestFlagsVariationsLazily(user1);
+            // the states are evaluated against the data at the time they were created
+            String json = readResource("fbclient_test_data.json")
+                    .replace("\"isEnabled\": false", "\"isEnabled\": true")
+                    .replace("2023-01-19T", "2023-01-20T");
+            assertTrue(client.initializeFromExternalJson(json));
+            assertFalse(states.getBoolean("ff-test-off", true));
+            assertTrue(client.getAllLatestFlagsVariationsLazily(user1).getBoolean("ff-test-off", false));
+        }
+    }
+
+    @Test
+    void testAllLatestFlagsVariationsLazilyOnError() {
+        DataModel.FeatureFlag broken = new DataModel.FeatureFlag("id", new Date(), false, false, true, "broken", "ff-broken", "boolean", null, null, null, null, null) {
+            @Override
+            public boolean isEnabled() {
+                throw new IllegalStateException("broken flag");
+            }
+        };
+        DataSnapshot snapshot = new DataSnapshot(1L, ImmutableMap.of("ff-broken", broken), null);
+        List<InsightTypes.Event> events = new ArrayList<>();
+        AllFlagStates states = new Implicits.LazyAllFlagStates(snapshot, user1, 1000, new AttributeSlots(), events::add);
+        // the getters give the default value and never throw
+        EvalDetail<Boolean> ed = states.getBooleanDetail("ff-broken", true);
+        assertTrue(ed.getVariation());
+        assertEquals(REASON_ERROR, ed.getReason());
+        assertFalse(states.getBoolean("ff-broken", false));
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    void testEvaluationScope() throws IOException {
+        try (FBClientImp client = initClientInOfflineMode()) {
+            FBUserContextHolder.setCurrentUser(user2, false);
+            try (EvaluationScope scope = client.openEvaluationScope(user1, false)) {
+                assertSame(scope, FBUserContextHolder.getCurrentScope());
+                assertSame(user1, FBUserContextHolder.getCurrentUser());
+                assertFalse(client.boolVariation("ff-test-off", user1, true));
+                // a newer version of the data is not seen by the scope
+                String json = readResource("fbclient_test_data.json")
+                        .replace("\"isEnabled\": false", "\"isEnabled\": true")
+                        .replace("2023-01-19T", "2023-01-20T");
+                assertTrue(client.initializeFromExternalJson(json));
+                assertFalse(client.boolVariation("ff-test-off", user1, true));
+                assertTrue(client.boolVariation("ff-test-off", user2, false));
+            }
+            assertNull(FBUserContextHolder.getCurrentScope());
+            // the user replaced by the scope is restored
+            assertSame(user2, FBUserContextHolder.getCurrentUser());
+            assertTrue(client.boolVariation("ff-test-off", user1, false));
+        } finally {
+            FBUserContextHolder.remove();
+        }
+    }
+
+    @Test
+    void testEvaluationScopeSendsOneEvent() throws IOException {
+        try (FBClientImp client = initClientInOfflineMode()) {
+            InMemoryDataStorage storage = new InMemoryDataStorage();
+            DataModel.Data data = JsonHelper.deserialize(readResource("fbclient_test_data.json"), DataModel.All.class).data();
+            storage.init(data.toStorageType(), data.getTimestamp());
+            List<InsightTypes.Event> events = new ArrayList<>();
+            EvaluationScope scope = new EvaluationScope(client, user1, DataSnapshot.of(storage), 0, new AttributeSlots(), events::add);
+            FBUserContextHolder.setCurrentScope(scope, false);
+            assertTrue(client.boolVariation("ff-test-bool", user1, false));
+            assertTrue(client.boolVariation("ff-test-bool", user1, false));
+            assertEquals("others", client.variation("ff-test-string", user1, "error"));
+            // another user is not evaluated in the scope
+            client.boolVariation("ff-test-bool", user2, false);
+            assertTrue(events.isEmpty());
+            scope.close();
+            assertTrue(scope.isClosed());
+            assertEquals(1, events.size());
+            assertEquals(2, JsonHelper.serialize(events.get(0)).split("featureFlagKey").length - 1);
+        } finally {
+            FBUserContextHolder.remove();
+        }
+    }
+
+    @Test
+    void testRemovingTheContextClosesTheScopes() throws IOException {
+        try (FBClientImp client = initClientInOfflineMode()) {
+            InMemoryDataStorage storage = new InMemoryDataStorage();
+            DataModel.Data data = JsonHelper.deserialize(readResource("fbclient_test_data.json"), DataModel.All.class).data();
+            storage.init(data.toStorageType(), data.getTimestamp());
+            List<InsightTypes.Event> events = new ArrayList<>();
+            EvaluationScope outer = new EvaluationScope(client, user1, DataSnapshot.of(storage), 0, new AttributeSlots(), events::add);
+            FBUserContextHolder.setCurrentScope(outer, false);
+            client.boolVariation("ff-test-bool", user1, false);
+            EvaluationScope inner = new EvaluationScope(client, user2, DataSnapshot.of(storage), 0, new AttributeSlots(), events::add);
+            FBUserContextHolder.setCurrentScope(inner, true);
+            assertSame(inner, FBUserContextHolder.getCurrentScope());
+            client.boolVariation("ff-test-bool", user2, false);
+            assertTrue(events.isEmpty());
+            FBUserContextHolder.remove();
+            assertTrue(outer.isClosed());
+            assertTrue(inner.isClosed());
+            assertEquals(2, events.size());
+            assertNull(FBUserContextHolder.getCurrentScope());
+            assertNull(FBUserContextHolder.getCurrentUser());
+        } finally {
+            FBUserContextHolder.remove();
+        }
+    }
+
+    @Test
+    void testRemovingTheContextOfAChildThreadKeepsTheInheritedScope() throws Exception {
+        try (FBClientImp client = initClientInOfflineMode()) {
+            try (EvaluationScope scope = client.openEvaluationScope(user1, true)) {
+                EvaluationScope[] inherited = new EvaluationScope[2];
+                Thread child = new Thread(() -> {
+                    inherited[0] = FBUserContextHolder.getCurrentScope();
+                    FBUserContextHolder.remove();
+                    inherited[1] = FBUserContextHolder.getCurrentScope();
+                });
+                child.start();
+                child.join();
+                assertSame(scope, inherited[0]);
+                assertNull(inherited[1]);
+                assertFalse(scope.isClosed());
+                assertSame(scope, FBUserContextHolder.getCurrentScope());
+                assertSame(user1, FBUserContextHolder.getCurrentUser());
+            }
+        } finally {
+            FBUserContextHolder.remove();
+        }
+    }
+
+    @Test
+    void testFlagHandle() throws IOException {
+        try (FBClientImp client = initClientInOfflineMode()) {
+            FlagHandle off = client.flag("ff-test-off");
+            assertSame(off, client.flag("ff-test-off"));
+            assertTrue(off.isKnown());
+            assertFalse(off.bool(user1, true));
+            assertEquals(REASON_FLAG_OFF, off.boolDetail(user1, true).getReason());
+            assertEquals("false", off.string(user1, "error"));
+            assertEquals(1, client.flag("ff-test-number").intValue(user1, -1));
+            assertEquals(33L, client.flag("ff-test-number").longValue(user2, -1L));
+            assertEquals(86D, client.flag("ff-test-number").doubleValue(user3, -1D));
+            assertEquals(-1, client.flag("ff-test-string").intValue(user1, -1));
+            FlagHandle unknown = client.flag("ff-not-existed");
+            assertFalse(unknown.isKnown());
+            assertEquals(REASON_FLAG_NOT_FOUND, unknown.stringDetail(user1, "error").getReason());
+            assertThrows(IllegalArgumentException.class, () -> client.flag(" "));
+
+            // the handles follow the updates of the flags
+            String json = readResource("fbclient_test_data.json")
+                    .replace("\"isEnabled\": false", "\"isEnabled\": true")
+                    .replace("2023-01-19T", "2023-01-20T");
+            assertTrue(client.initializeFromExternalJson(json));
+            assertTrue(off.bool(user1, false));
+            assertEquals(client.boolVariationDetail("ff-test-off", user1, false).getReason(), off.boolDetail(user1, false).getReason());
+        }
+    }
+
+    @Test
+    void testFlagHandleByDefault() throws IOException {
+        try (FBClient client = new DelegatingClient(initClientInOfflineMode())) {
+            FlagHandle off = client.flag("ff-test-off");
+            assertTrue(off.isKnown());
+            assertFalse(off.bool(user1, true));
+            assertEquals(REASON_FLAG_OFF, off.boolDetail(user1, true).getReason());
+            assertEquals("false", off.string(user1, "error"));
+            assertEquals(33L, client.flag("ff-test-number").longValue(user2, -1L));
+            FlagHandle unknown = client.flag("ff-not-existed");
+            assertFalse(unknown.isKnown());
+            assertEquals(REASON_FLAG_NOT_FOUND, unknown.stringDetail(user1, "error").getReason());
+            assertThrows(IllegalArgumentException.class, () -> client.flag(" "));
+
+            String json = readResource("fbclient_test_data.json")
+                    .replace("\"isEnabled\": false", "\"isEnabled\": true")
+                    .replace("2023-01-19T", "2023-01-20T");
+            assertTrue(client.initializeFromExternalJson(json));
+            assertTrue(off.bool(user1, false));
+        }
+    }
+
+    @Test
+    void testEvaluateFlags() throws IOException {
+        List<InsightTypes.Event> events = new ArrayList<>();
+        try (FBClient client = initClientWithCapturedEvents(events)) {
+            AllFlagStates states = client.evaluate(user1, Arrays.asList("ff-test-bool", "ff-test-number", "ff-not-existed", "ff-test-bool"));
+            assertTrue(states.isSuccess());
+            assertEquals(2, states.getFlagKeys().size());
+            EvalDetail<Boolean> ed1 = states.getBooleanDetail("ff-test-bool", false);
+            assertTrue(ed1.getVariation());
+            assertEquals(REASON_TARGET_MATCH, ed1.getReason());
+            assertEquals(1, states.getInteger("ff-test-number", -1));
+            assertEquals(REASON_FLAG_NOT_FOUND, states.getStringDetail("ff-not-existed", "error").getReason());
+            // one event for all the flags, none when the states are read
+            assertEquals(1, events.size());
+            assertEquals(2, JsonHelper.serialize(events.get(0)).split("featureFlagKey").length - 1);
+
+            states = client.evaluate(null, Collections.singletonList("ff-test-bool"));
+            assertFalse(states.isSuccess());
+            assertEquals(REASON_USER_NOT_SPECIFIED, states.getReason());
+            assertEquals(1, events.size());
+        }
+    }
+
+    @Test
+    void testEvaluateFlagsByDefault() throws IOException {
+        try (FBClient client = new DelegatingClient(initClientInOfflineMode())) {
+            AllFlagStates states = client.evaluate(user1, Arrays.asList("ff-test-bool", "ff-test-number", "ff-not-existed"));
+            assertTrue(states.isSuccess());
+            assertEquals(ImmutableSet.of("ff-test-bool", "ff-test-number"), ImmutableSet.copyOf(states.getFlagKeys()));
+            EvalDetail<Boolean> ed = states.getBooleanDetail("ff-test-bool", false);
+            assertTrue(ed.getVariation());
+            assertEquals(REASON_TARGET_MATCH, ed.getReason());
+            assertEquals(1, states.getInteger("ff-test-number", -1));
+            assertEquals(REASON_FLAG_NOT_FOUND, states.getStringDetail("ff-not-existed", "error").getReason());
+            // a flag that is not requested is not found
+            assertTrue(client.isFlagKnown("ff-test-off"));
+            assertEquals(REASON_FLAG_NOT_FOUND, states.getBooleanDetail("ff-test-off", true).getReason());
+            assertTrue(states.getBoolean("ff-test-off", true));
+            assertFalse(client.evaluate(null, Collections.singletonList("ff-test-bool")).isSuccess());
+        }
+    }
+
+    @Test
+    void testBulkEvaluate() throws IOException {
+        List<InsightTypes.Event> events = Collections.synchronizedList(new ArrayList<>());
+        try (FBClient client = initClientWithCapturedEvents(events)) {
+            List<FBUser> users = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                users.add(new FBUser.Builder("bulk-user-" + i).userName("bulk-user-" + i).build());
+            }
+            users.add(user1);
+            users.add(null);
+            BulkEvaluation bulk = client.bulkEvaluate("ff-test-bool", users, false);
+            assertTrue(bulk.isSuccess());
+            assertEquals(users.size(), bulk.getTotal());
+            assertEquals(1, bulk.getErrorCount());
+            assertTrue(events.isEmpty());
+            BitSet trueUsers = bulk.getUserIndices("true");
+            for (int i = 0; i < users.size() - 1; i++) {
+                assertEquals(client.variation("ff-test-bool", users.get(i), "error"), trueUsers.get(i) ? "true" : "false");
+            }
+            assertEquals(bulk.getCount("true"), trueUsers.cardinality());
+            assertTrue(bulk.getCount("false") > 0);
+            events.clear();
+
+            BulkEvaluation streamed = client.bulkEvaluate("ff-test-bool", users.stream(), true);
+            assertEquals(bulk.getCounts(), streamed.getCounts());
+            assertNull(streamed.getUserIndices("true"));
+            assertEquals(users.size() - 1, events.size());
+
+            BulkEvaluation unknown = client.bulkEvaluate("ff-not-existed", users, false);
+            assertFalse(unknown.isSuccess());
+            assertEquals(REASON_FLAG_NOT_FOUND, unknown.getReason());
+        }
+    }
+
+    @Test
+    void testBulkEvaluateByDefault() throws IOException {
+        try (FBClientImp imp = initClientInOfflineMode(); FBClient client = new DelegatingClient(imp)) {
+            List<FBUser> users = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                users.add(new FBUser.Builder("bulk-user-" + i).userName("bulk-user-" + i).build());
+            }
+            users.add(null);
+            BulkEvaluation bulk = client.bulkEvaluate("ff-test-bool", users, false);
+            BulkEvaluation expected = imp.bulkEvaluate("ff-test-bool", users, false);
+            assertTrue(bulk.isSuccess());
+            assertEquals(expected.getCounts(), bulk.getCounts());
+            assertEquals(expected.getUserIndices("true"), bulk.getUserIndices("true"));
+            assertEquals(1, bulk.getErrorCount());
+
+            BulkEvaluation streamed = client.bulkEvaluate("ff-test-bool", users.stream(), false);
+            assertEquals(expected.getCounts(), streamed.getCounts());
+            assertNull(streamed.getUserIndices("true"));
+            assertEquals(REASON_FLAG_NOT_FOUND, client.bulkEvaluate("ff-not-existed", users, false).getReason());
+        }
+    }
+
+    private FBClientImp initClientWithCapturedEvents(List<InsightTypes.Event> events) throws IOException {
+        InMemoryDataStorage storage = new InMemoryDataStorage();
+        DataModel.Data data = JsonHelper.deserialize(readResource("fbclient_test_data.json"), DataModel.All.class).data();
+        storage.init(data.toStorageType(), data.getTimestamp());
+        InsightProcessor capturingProcessor = new InsightProcessor() {
+            @Override
+            public void send(InsightTypes.Event event) {
+                events.add(event);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        fakeConfigBuilder.dataSynchronizerFactory(Factory.externalDataSynchronization())
+                .insightProcessorFactory(mockInsightProcessorFactory(capturingProcessor))
+                .dataStorageFactory(mockDataStorageFactory(storage));
+        return new FBClientImp(fakeEnvSecret, fakeConfigBuilder.build());
+    }
+
     @Test
     void testVariationArgumentError() throws IOException {
         try (FBClient client = initClientInOfflineMode()) {
@@ -1,14 +1,22 @@
 package co.featbit.server;
 
+import co.featbit.commons.json.JsonHelper;
+import co.featbit.commons.model.FBUser;
 import co.featbit.server.exterior.DataStorage;
 import co.featbit.server.exterior.DataStorageTypes;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.Arrays;
+import java.util.Date;
 import java.util.Map;
 
 import static co.featbit.server.exterior.DataStorageTypes.DATATESTS;
+import static co.featbit.server.exterior.DataStorageTypes.FEATURES;
+import static co.featbit.server.exterior.DataStorageTypes.SEGMENTS;
 import static org.junit.jupiter.api.Assertions.*;
 
 class InMemoryDataStorageTest {
@@ -116,4 +124,75 @@ class InMemoryDataStorageTest {
         assertEquals(1L, dataStorage.getVersion());
     }
 
+    @Test
+    void testUserKeyIndex() throws Exception {
+        InMemoryDataStorage storage = new InMemoryDataStorage();
+        DataModel.Data data = readTestData();
+        assertTrue(storage.init(data.toStorageType(), data.getTimestamp()));
+        String segmentId = data.getSegments().get(0).getId();
+        String variationId = "18b369f8-453f-46d7-88cc-fe41d29ca6e3";
+        DataSnapshot snapshot = storage.snapshot();
+        UserKeyIndex.Entry user1 = snapshot.getUserKeyEntry("test-user-1");
+        assertEquals(Boolean.TRUE, user1.membershipIn(segmentId));
+        assertEquals(variationId, user1.targetedVariationId("ff-test-bool"));
+        assertEquals(Boolean.FALSE, snapshot.getUserKeyEntry("test-user-2").membershipIn(segmentId));
+        // the keys named by the same segments and flags share their entry
+        assertSame(snapshot.getUserKeyEntry("test-user-2"), storage.snapshot().getUserKeyEntry("test-user-2"));
+        assertSame(UserKeyIndex.Entry.EMPTY, snapshot.getUserKeyEntry("test-user-3"));
+        assertEquals(ImmutableMap.of("ff-test-bool", variationId), storage.getTargetedVariationIds("test-user-1"));
+        assertEquals(ImmutableMap.of("ff-evaluation-test", "b70edce6-2b12-4b57-8a87-6ba54420bb02"), storage.getTargetedVariationIds("test-target-user"));
+        assertTrue(storage.getTargetedVariationIds("test-user-3").isEmpty());
+
+        // a new version of the segment replaces the keys of the old one, the older snapshots aren't answered
+        long version = data.getTimestamp() + 1;
+        DataModel.Segment segment = new DataModel.Segment(segmentId, false, new Date(version), Arrays.asList("test-user-3"), Arrays.asList("test-user-1"), null);
+        segment.afterDeserialization();
+        assertTrue(storage.upsert(SEGMENTS, segmentId, segment, version));
+        assertNull(snapshot.getUserKeyEntry("test-user-1"));
+        snapshot = storage.snapshot();
+        assertEquals(Boolean.FALSE, snapshot.getUserKeyEntry("test-user-1").membershipIn(segmentId));
+        assertNull(snapshot.getUserKeyEntry("test-user-2").membershipIn(segmentId));
+        assertEquals(Boolean.TRUE, snapshot.getUserKeyEntry("test-user-3").membershipIn(segmentId));
+
+        // an archived flag
+        assertTrue(storage.upsert(FEATURES, "ff-test-bool", new DataModel.ArchivedItem("ff-test-bool", ++version), version));
+        assertTrue(storage.getTargetedVariationIds("test-user-1").isEmpty());
+        assertSame(UserKeyIndex.Entry.EMPTY, storage.snapshot().getUserKeyEntry("test-user-2"));
+
+        // the keys of a massive segment are not indexed
+        InMemoryDataStorage massive = new InMemoryDataStorage(1);
+        data = readTestData();
+        assertTrue(massive.init(data.toStorageType(), data.getTimestamp()));
+        assertFalse(UserKeyIndex.isIndexed(massive.snapshot().getSegment(segmentId)));
+        assertNull(massive.snapshot().getUserKeyEntry("test-user-1").membershipIn(segmentId));
+    }
+
+    @Test
+    void testEvaluationsWithUserKeyIndex() throws Exception {
+        for (int threshold : new int[]{0, 1}) {
+            // the key sets of a segment are built once, by the first storage
+            DataModel.Data data = readTestData();
+            InMemoryDataStorage storage = new InMemoryDataStorage(threshold);
+            assertTrue(storage.init(data.toStorageType(), data.getTimestamp()));
+            DataSnapshot indexed = storage.snapshot();
+            DataSnapshot notIndexed = new DataSnapshot(indexed.getVersion(), storage.getAll(FEATURES), storage.getAll(SEGMENTS));
+            Evaluator evaluator = indexed.newEvaluator(0, new AttributeSlots());
+            Evaluator expected = notIndexed.newEvaluator(0, new AttributeSlots());
+            for (String key : Arrays.asList("test-user-1", "test-user-2", "test-user-3", "test-target-user")) {
+                FBUser user = new FBUser.Builder(key).userName(key).custom("country", "us").build();
+                EvaluationContext context = evaluator.prepare(user);
+                EvaluationContext expectedContext = expected.prepare(user);
+                for (DataModel.FeatureFlag flag : indexed.getFlags()) {
+                    Evaluator.EvalResult res = evaluator.evaluate(flag, context, null);
+                    Evaluator.EvalResult expectedRes = expected.evaluate(flag, expectedContext, null);
+                    assertEquals(expectedRes.getValue(), res.getValue(), flag.getKey() + " " + key);
+                    assertEquals(expectedRes.getReason(), res.getReason(), flag.getKey() + " " + key);
+                }
+            }
+        }
+    }
+
+    private static DataModel.Data readTestData() throws Exception {
+        return JsonHelper.deserialize(Resources.toString(Resources.getResource("fbclient_test_data.json"), Charsets.UTF_8), DataModel.All.class).data();
+    }
 }